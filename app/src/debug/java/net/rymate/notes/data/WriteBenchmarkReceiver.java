@@ -0,0 +1,194 @@
+package net.rymate.notes.data;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Debug builds only. Times the single note writes on a scratch in-memory
+ * database, first the way NotesDbAdapter used to do them (ContentValues
+ * through SQLiteDatabase.insert/update/delete, with the id concatenated into
+ * the WHERE clause) and then through {@link NoteStatements}, and logs the
+ * cost of each operation. Nothing touches the real notes.
+ *
+ * adb shell am broadcast -n net.rymate.notes.debug/net.rymate.notes.data.WriteBenchmarkReceiver
+ */
+public class WriteBenchmarkReceiver extends BroadcastReceiver {
+    private static final String TAG = "WriteBenchmark";
+    private static final int NOTES = 2000;
+    private static final int WARMUP = 200;
+
+    private static final String BODY = "<p>Some <b>formatted</b> text for the benchmark, "
+            + "about as long as a short note.</p>";
+
+    /**
+     * One way of writing notes
+     */
+    private interface Writer {
+        long insert(int i);
+
+        void update(long id, int i);
+
+        void delete(long id);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.i(TAG, runBenchmark());
+                } finally {
+                    result.finish();
+                }
+            }
+        }).start();
+    }
+
+    private static String runBenchmark() {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        final NoteStatements statements;
+        try {
+            db.execSQL(NotesDbAdapter.DATABASE_CREATE);
+            db.execSQL(NotesDbAdapter.DATABASE_CATEGORIES_CREATE);
+            db.execSQL(NotesDbAdapter.DATABASE_FTS_CREATE);
+            db.execSQL(NotesDbAdapter.DATABASE_FTS_DELETE_TRIGGER);
+            statements = new NoteStatements(db);
+
+            Writer contentValues = new Writer() {
+                @Override
+                public long insert(int i) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotesDbAdapter.KEY_TITLE, "Note " + i);
+                    values.put(NotesDbAdapter.KEY_BODY, BODY);
+                    values.put(NotesDbAdapter.KEY_CATID, 0);
+                    values.put(NotesDbAdapter.KEY_CREATED, i);
+                    values.put(NotesDbAdapter.KEY_MODIFIED, i);
+                    values.put(NotesDbAdapter.KEY_PREVIEW, BODY);
+                    long id = db.insert(NotesDbAdapter.DATABASE_TABLE, null, values);
+                    index(id, i);
+                    return id;
+                }
+
+                @Override
+                public void update(long id, int i) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotesDbAdapter.KEY_TITLE, "Note " + i);
+                    values.put(NotesDbAdapter.KEY_BODY, BODY);
+                    values.put(NotesDbAdapter.KEY_CATID, 0);
+                    values.put(NotesDbAdapter.KEY_MODIFIED, i);
+                    values.put(NotesDbAdapter.KEY_PREVIEW, BODY);
+                    db.update(NotesDbAdapter.DATABASE_TABLE, values,
+                            NotesDbAdapter.KEY_ROWID + "=" + id, null);
+                    index(id, i);
+                }
+
+                @Override
+                public void delete(long id) {
+                    db.delete(NotesDbAdapter.DATABASE_TABLE, NotesDbAdapter.KEY_ROWID + "=" + id,
+                            null);
+                }
+
+                private void index(long id, int i) {
+                    db.delete(NotesDbAdapter.FTS_TABLE, "docid = " + id, null);
+                    ContentValues values = new ContentValues();
+                    values.put("docid", id);
+                    values.put(NotesDbAdapter.KEY_TITLE, "Note " + i);
+                    values.put(NotesDbAdapter.KEY_BODY, BODY);
+                    db.insert(NotesDbAdapter.FTS_TABLE, null, values);
+                }
+            };
+
+            Writer compiled = new Writer() {
+                @Override
+                public long insert(int i) {
+                    long id = statements.insertNote("Note " + i, BODY, 0, i, BODY,
+                            NotesDbAdapter.STORAGE_INLINE, null);
+                    statements.indexNote(id, "Note " + i, BODY);
+                    return id;
+                }
+
+                @Override
+                public void update(long id, int i) {
+                    statements.updateNote(id, "Note " + i, BODY, 0, i, BODY,
+                            NotesDbAdapter.STORAGE_INLINE, null);
+                    statements.indexNote(id, "Note " + i, BODY);
+                }
+
+                @Override
+                public void delete(long id) {
+                    statements.deleteNote(id);
+                }
+            };
+
+            // let the JIT and SQLite's caches settle before anything is timed
+            time(db, contentValues, WARMUP);
+            time(db, compiled, WARMUP);
+
+            long[] before = time(db, contentValues, NOTES);
+            long[] after = time(db, compiled, NOTES);
+            statements.close();
+
+            return "Microseconds per operation over " + NOTES + " notes, ContentValues -> "
+                    + "compiled statements:"
+                    + "\n  insert " + before[0] + " -> " + after[0]
+                    + "\n  update " + before[1] + " -> " + after[1]
+                    + "\n  delete " + before[2] + " -> " + after[2];
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Insert, update and then delete some notes, each write in its own
+     * transaction as the adapter does it.
+     *
+     * @return the average microseconds per insert, update and delete
+     */
+    private static long[] time(SQLiteDatabase db, Writer writer, int count) {
+        long[] ids = new long[count];
+        long[] micros = new long[3];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            db.beginTransaction();
+            try {
+                ids[i] = writer.insert(i);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        micros[0] = (System.nanoTime() - start) / 1000 / count;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            db.beginTransaction();
+            try {
+                writer.update(ids[i], i + 1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        micros[1] = (System.nanoTime() - start) / 1000 / count;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            db.beginTransaction();
+            try {
+                writer.delete(ids[i]);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        micros[2] = (System.nanoTime() - start) / 1000 / count;
+        return micros;
+    }
+}
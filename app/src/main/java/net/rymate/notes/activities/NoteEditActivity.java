@@ -74,9 +74,6 @@ public class NoteEditActivity extends AppCompatActivity {
                 .replace(R.id.note_container, fragment)
                 .commit();
 
-        NotesDbAdapter mDbHelper = new NotesDbAdapter(this);
-        mDbHelper.open();
-
         //getActionBar().setTitle(R.string.edit_note);
 
     }
@@ -29,12 +29,16 @@ public class NoteViewActivity extends AppCompatActivity
 
     Long mRowId;
     private NoteViewFragment nvf;
+    private NotesDbAdapter mDbHelper;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_note_view);
 
+        mDbHelper = new NotesDbAdapter(this);
+        mDbHelper.open();
+
         Toolbar toolbar = (Toolbar) findViewById(R.id.action_toolbar);
         setSupportActionBar(toolbar);
 
@@ -72,6 +76,12 @@ public class NoteViewActivity extends AppCompatActivity
     }
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDbHelper.close();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -153,8 +163,6 @@ public class NoteViewActivity extends AppCompatActivity
     // defined by the NoticeDialogFragment.NoticeDialogListener interface
     @Override
     public void onDialogPositiveClick(DialogFragment dialog) {
-        NotesDbAdapter mDbHelper = new NotesDbAdapter(this);
-        mDbHelper.open();
         mDbHelper.deleteNote(mRowId);
         Context context = getApplicationContext();
         int duration = Toast.LENGTH_SHORT;
@@ -2,7 +2,7 @@ package net.rymate.notes.activities;
 
 import android.content.Intent;
 import android.content.IntentSender;
-import android.os.ParcelFileDescriptor;
+import android.os.AsyncTask;
 import com.google.android.material.snackbar.Snackbar;
 import android.os.Bundle;
 import androidx.appcompat.app.AppCompatActivity;
@@ -14,14 +14,12 @@ import android.widget.Button;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveApi;
 import com.google.android.gms.drive.DriveContents;
 import com.google.android.gms.drive.DriveFile;
 import com.google.android.gms.drive.DriveId;
-import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.MetadataChangeSet;
 import com.google.android.gms.drive.OpenFileActivityBuilder;
 
@@ -29,10 +27,10 @@ import net.rymate.notes.R;
 import net.rymate.notes.data.NotesDbAdapter;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 
 public class NotesBackupActivity extends AppCompatActivity
         implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
@@ -88,6 +86,12 @@ public class NotesBackupActivity extends AppCompatActivity
         restoreButton.setEnabled(false);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDbHelper.close();
+    }
+
     @Override
     public void onConnected(Bundle bundle) {
         Snackbar.make(this.findViewById(R.id.backup_activity), "Connected to Google Drive!", Snackbar.LENGTH_LONG).show();
@@ -99,20 +103,56 @@ public class NotesBackupActivity extends AppCompatActivity
         ResultCallback<DriveApi.DriveContentsResult> newFileCallback = new ResultCallback<DriveApi.DriveContentsResult>() {
             @Override
             public void onResult(DriveApi.DriveContentsResult result) {
-            MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
-                    .setMimeType("text/plain").build();
-            DriveContents contents = result.getDriveContents();
+                if (!result.getStatus().isSuccess()) {
+                    Snackbar.make(findViewById(R.id.backup_activity), "Error whilst backing up notes", Snackbar.LENGTH_LONG).show();
+                    return;
+                }
+                new BackupTask().execute(result.getDriveContents());
+            }
+        };
+        Drive.DriveApi.newDriveContents(mGoogleApiClient).setResultCallback(newFileCallback);
+    }
+
+    /**
+     * Writes the backup into the new Drive file off the UI thread, then asks
+     * the user where to save it.
+     */
+    private class BackupTask extends AsyncTask<DriveContents, Void, Boolean> {
+        private DriveContents contents;
+
+        @Override
+        protected Boolean doInBackground(DriveContents... params) {
+            contents = params[0];
+
+            // hold our own reference so the database stays open even if the
+            // activity is destroyed while the backup is written
+            NotesDbAdapter dbHelper = new NotesDbAdapter(getApplicationContext());
+            dbHelper.open();
             try {
-                ParcelFileDescriptor parcelFileDescriptor = contents.getParcelFileDescriptor();
-                FileInputStream fileInputStream = new FileInputStream(parcelFileDescriptor
-                        .getFileDescriptor());
                 OutputStream os = contents.getOutputStream();
-                os.write(mDbHelper.createJsonFromNotes().getBytes("UTF-8"));
-                os.close();
+                try {
+                    dbHelper.exportNotes(os);
+                } finally {
+                    os.close();
+                }
+                return true;
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.w("Rymate Notes", "Unable to write backup", e);
+                return false;
+            } finally {
+                dbHelper.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean written) {
+            if (!written) {
+                Snackbar.make(findViewById(R.id.backup_activity), "Error whilst backing up notes", Snackbar.LENGTH_LONG).show();
+                return;
             }
 
+            MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
+                    .setMimeType("text/plain").build();
             IntentSender intentSender = Drive.DriveApi
                     .newCreateFileActivityBuilder()
                     .setInitialMetadata(metadataChangeSet)
@@ -123,9 +163,7 @@ public class NotesBackupActivity extends AppCompatActivity
             } catch (IntentSender.SendIntentException e) {
                 Log.w("Rymate Notes", "Unable to send intent", e);
             }
-            }
-        };
-        Drive.DriveApi.newDriveContents(mGoogleApiClient).setResultCallback(newFileCallback);
+        }
     }
 
 
@@ -144,6 +182,64 @@ public class NotesBackupActivity extends AppCompatActivity
     }
 
 
+    /**
+     * Reads a backup from Drive and inserts the notes as they are parsed,
+     * off the UI thread.
+     */
+    private class RestoreTask extends AsyncTask<DriveContents, Integer, NotesDbAdapter.ImportResult> {
+
+        @Override
+        protected NotesDbAdapter.ImportResult doInBackground(DriveContents... params) {
+            DriveContents contents = params[0];
+
+            // hold our own reference so the database stays open even if the
+            // activity is destroyed while the notes are restored
+            NotesDbAdapter dbHelper = new NotesDbAdapter(getApplicationContext());
+            dbHelper.open();
+            try {
+                Reader reader = new BufferedReader(
+                        new InputStreamReader(contents.getInputStream(), "UTF-8"));
+                try {
+                    return dbHelper.importNotesFromJson(reader, new NotesDbAdapter.ImportListener() {
+                        @Override
+                        public void onProgress(int inserted, int failed) {
+                            publishProgress(inserted);
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return RestoreTask.this.isCancelled();
+                        }
+                    });
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.w("Rymate Notes", "Unable to read backup", e);
+                return null;
+            } finally {
+                dbHelper.close();
+                contents.discard(mGoogleApiClient);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            Snackbar.make(findViewById(R.id.backup_activity), "Restored " + values[0] + " notes...", Snackbar.LENGTH_SHORT).show();
+        }
+
+        @Override
+        protected void onPostExecute(NotesDbAdapter.ImportResult result) {
+            if (result == null) {
+                Snackbar.make(findViewById(R.id.backup_activity), "Error whilst restoring notes", Snackbar.LENGTH_LONG).show();
+            } else if (result.failed > 0) {
+                Snackbar.make(findViewById(R.id.backup_activity), "Notes Restored! " + result.failed + " notes could not be restored", Snackbar.LENGTH_LONG).show();
+            } else {
+                Snackbar.make(findViewById(R.id.backup_activity), "Notes Restored!", Snackbar.LENGTH_LONG).show();
+            }
+        }
+    }
+
     @Override
     public void onConnectionSuspended(int i) {
 
@@ -181,13 +277,6 @@ public class NotesBackupActivity extends AppCompatActivity
 
                     DriveFile file = Drive.DriveApi.getFile(mGoogleApiClient, mCurrentDriveId);
 
-                    final PendingResult<DriveResource.MetadataResult>
-                            metadataResult = file.getMetadata(mGoogleApiClient);
-
-                    final PendingResult<DriveApi.DriveContentsResult>
-                            contentsResult = file.open(mGoogleApiClient,
-                            DriveFile.MODE_READ_ONLY | DriveFile.MODE_WRITE_ONLY, null);
-
                     file.open(mGoogleApiClient, DriveFile.MODE_READ_ONLY, null)
                         .setResultCallback(new ResultCallback<DriveApi.DriveContentsResult>() {
                             @Override
@@ -196,25 +285,7 @@ public class NotesBackupActivity extends AppCompatActivity
                                     Snackbar.make(findViewById(R.id.backup_activity), "Error whilst restoring notes", Snackbar.LENGTH_LONG).show();
                                     return;
                                 }
-                                // DriveContents object contains pointers
-                                // to the actual byte stream
-                                DriveContents contents = result.getDriveContents();
-                                BufferedReader reader = new BufferedReader(new InputStreamReader(contents.getInputStream()));
-                                StringBuilder builder = new StringBuilder();
-                                String line;
-                                try {
-                                    while ((line = reader.readLine()) != null) {
-                                        builder.append(line);
-                                    }
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                String contentsAsString = builder.toString();
-
-                                mDbHelper.createNotesFromJson(contentsAsString);
-
-                                Snackbar.make(findViewById(R.id.backup_activity), "Notes Restored!", Snackbar.LENGTH_LONG).show();
-
+                                new RestoreTask().execute(result.getDriveContents());
                             }
                         });
                 }
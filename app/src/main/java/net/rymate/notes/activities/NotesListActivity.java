@@ -9,7 +9,10 @@ import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
 
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.FragmentManager;
@@ -44,6 +47,9 @@ import net.rymate.notes.fragments.NoteEditFragment;
 import net.rymate.notes.fragments.NoteViewFragment;
 import net.rymate.notes.fragments.NotesListFragment;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
  * Created by Ryan on 05/07/13.
  */
@@ -67,6 +73,9 @@ public class NotesListActivity extends AppCompatActivity
     private DrawerLayout mDrawerLayout;
     private ActionBarDrawerToggle mDrawerToggle;
     private ListView mDrawerList;
+    private SimpleCursorAdapter mCategoryAdapter;
+    private LoadCategoriesTask mCategoriesTask;
+    private MaintenanceTask mMaintenanceTask;
     private SharedPreferences pref;
     private NotesDbAdapter mDbHelper;
     private NotesListFragment list;
@@ -75,6 +84,21 @@ public class NotesListActivity extends AppCompatActivity
     private NoteEditFragment editFragment;
     private GoogleApiClient mGoogleApiClient;
 
+    private static final String PREF_SORT_MODE = "sort_mode";
+    private static final String PREF_NORMALIZED_THROUGH = "normalized_through";
+
+    /**
+     * How many notes the maintenance task normalizes at a time
+     */
+    private static final int NORMALIZE_BATCH_SIZE = 20;
+
+    /**
+     * Runs the maintenance task on a thread of its own rather than on
+     * AsyncTask's serial queue, so loading categories and notes never waits
+     * behind it.
+     */
+    private static final Executor sMaintenanceExecutor = Executors.newSingleThreadExecutor();
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -121,7 +145,14 @@ public class NotesListActivity extends AppCompatActivity
                 toolbar,  /* toolbar */
                 R.string.drawer_open,  /* "open drawer" description */
                 R.string.drawer_close  /* "close drawer" description */
-        );
+        ) {
+            @Override
+            public void onDrawerOpened(View drawerView) {
+                super.onDrawerOpened(drawerView);
+                // the counts may have changed since the drawer was last shown
+                getCategories();
+            }
+        };
 
         //getActionBar().setBackgroundDrawable(new ColorDrawable(Color.parseColor("#1e90ff")));
 
@@ -129,27 +160,52 @@ public class NotesListActivity extends AppCompatActivity
         mDrawerLayout.setDrawerListener(mDrawerToggle);
 
         pref = getSharedPreferences("rymatenotesprefs", MODE_PRIVATE);
+        list.setSortMode(pref.getInt(PREF_SORT_MODE, NotesDbAdapter.SORT_TITLE));
 
         mDrawerList = (ListView) findViewById(R.id.cat_list);
 
         mDrawerList.setOnItemClickListener(new DrawerItemClickListener());
 
+        // Create an array to specify the fields we want to display in the list
+        String[] from = new String[]{NotesDbAdapter.KEY_TITLE, NotesDbAdapter.KEY_NOTE_COUNT};
+
+        // and an array of the fields we want to bind those fields to
+        int[] to = new int[]{android.R.id.text1, android.R.id.text2};
+
+        // the categories are loaded into it in the background
+        mCategoryAdapter = new SimpleCursorAdapter(this, R.layout.drawer_category_row, null,
+                from, to, 0);
+        mDrawerList.setAdapter(mCategoryAdapter);
+
         mDbHelper = new NotesDbAdapter(this);
         mDbHelper.open();
 
-        if (mDbHelper.fetchAllNotes().getCount() == 0) {
-            IntroFragment fragment = new IntroFragment();
-            getSupportFragmentManager().beginTransaction()
-                    .replace(R.id.note_list_container, fragment)
-                    .commit();
+        // the intro is shown once the categories have been counted, if
+        // there are no notes
+        mCategoriesTask = new LoadCategoriesTask(true);
+        mCategoriesTask.execute();
 
+        if (savedInstanceState == null) {
+            startMaintenance(true);
         }
 
-        getCategories();
-
     }
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCategoriesTask != null) {
+            mCategoriesTask.cancel(false);
+        }
+        if (mMaintenanceTask != null) {
+            mMaintenanceTask.cancel(false);
+            mMaintenanceTask = null;
+        }
+        mCategoryAdapter.changeCursor(null);
+        mDbHelper.close();
+    }
+
     /**
      * Callback method from {@link NotesListFragment.Callbacks}
      * indicating that the item with the given ID was selected.
@@ -194,6 +250,18 @@ public class NotesListActivity extends AppCompatActivity
         else
             inflater.inflate(R.menu.main_activity_tablet, menu);
 
+        switch (list.getSortMode()) {
+            case NotesDbAdapter.SORT_CREATED:
+                menu.findItem(R.id.sort_created).setChecked(true);
+                break;
+            case NotesDbAdapter.SORT_MODIFIED:
+                menu.findItem(R.id.sort_modified).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.sort_title).setChecked(true);
+                break;
+        }
+
         SearchManager manager = (SearchManager) getSystemService(Context.SEARCH_SERVICE);
 
         MenuItem searchItem = menu.findItem(R.id.action_search);
@@ -332,11 +400,26 @@ public class NotesListActivity extends AppCompatActivity
                 Intent detailIntent = new Intent(this, NotesBackupActivity.class);
                 startActivity(detailIntent);
                 return true;
+            case R.id.sort_title:
+                setSortMode(NotesDbAdapter.SORT_TITLE);
+                return true;
+            case R.id.sort_created:
+                setSortMode(NotesDbAdapter.SORT_CREATED);
+                return true;
+            case R.id.sort_modified:
+                setSortMode(NotesDbAdapter.SORT_MODIFIED);
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    private void setSortMode(int sortMode) {
+        pref.edit().putInt(PREF_SORT_MODE, sortMode).apply();
+        list.setSortMode(sortMode);
+        supportInvalidateOptionsMenu();
+    }
+
     /**
      * When using the ActionBarDrawerToggle, you must call it during
      * onPostCreate() and onConfigurationChanged()...
@@ -377,30 +460,26 @@ public class NotesListActivity extends AppCompatActivity
      */
     private void selectItem(int position) {
         mDrawerLayout.closeDrawer(mDrawerLinear);
-        if (mDbHelper.fetchAllNotes().getCount() == 0) {
+        if (mDbHelper.isKnownEmpty()) {
             return;
         } else {
             list.fillData(position);
         }
     }
 
+    /**
+     * Load the categories and their note counts into the drawer, off the UI
+     * thread. A load already running is replaced by the new one.
+     */
     public void getCategories() {
-        Cursor catCursor = mDbHelper.fetchCategories();
-        startManagingCursor(catCursor);
-
-        // Create an array to specify the fields we want to display in the list
-        String[] from = new String[]{NotesDbAdapter.KEY_TITLE};
-
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{android.R.id.text1};
-
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter cat =
-                new SimpleCursorAdapter(this, R.layout.category_row, catCursor, from, to);
-
-        if (mDrawerList != null) {
-            mDrawerList.setAdapter(cat);
+        // a first load that is replaced hands on showing the intro
+        boolean showIntro = false;
+        if (mCategoriesTask != null) {
+            showIntro = mCategoriesTask.mShowIntro;
+            mCategoriesTask.cancel(false);
         }
+        mCategoriesTask = new LoadCategoriesTask(showIntro);
+        mCategoriesTask.execute();
     }
 
     @Override
@@ -428,4 +507,123 @@ public class NotesListActivity extends AppCompatActivity
             selectItem(position);
         }
     }
+
+    /**
+     * Loads the drawer's categories with their counts. It has its own
+     * adapter, so the database stays open even if the activity is destroyed
+     * first; the cursor it returns is held in memory.
+     */
+    private class LoadCategoriesTask extends AsyncTask<Void, Void, Cursor> {
+        private final Context mContext = getApplicationContext();
+        private final boolean mShowIntro;
+
+        /**
+         * @param showIntro whether to show the intro in place of the list if
+         *                  there turn out to be no notes
+         */
+        LoadCategoriesTask(boolean showIntro) {
+            mShowIntro = showIntro;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            NotesDbAdapter dbHelper = new NotesDbAdapter(mContext);
+            dbHelper.open();
+            try {
+                return dbHelper.fetchCategoriesWithCounts();
+            } finally {
+                dbHelper.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor categories) {
+            if (mCategoriesTask == this) {
+                mCategoriesTask = null;
+            }
+            mCategoryAdapter.changeCursor(categories);
+
+            // the first row is every note
+            if (mShowIntro && categories.moveToFirst() && categories.getInt(
+                    categories.getColumnIndexOrThrow(NotesDbAdapter.KEY_NOTE_COUNT)) == 0) {
+                IntroFragment fragment = new IntroFragment();
+                getSupportFragmentManager().beginTransaction()
+                        .replace(R.id.note_list_container, fragment)
+                        .commitAllowingStateLoss();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor categories) {
+            if (categories != null) {
+                categories.close();
+            }
+        }
+    }
+
+    private void startMaintenance(boolean collect) {
+        mMaintenanceTask = new MaintenanceTask(collect);
+        mMaintenanceTask.executeOnExecutor(sMaintenanceExecutor);
+    }
+
+    /**
+     * Tidies up the database in the background each time the app is started:
+     * clears out the files of note bodies left behind by saves that never
+     * finished, and carries on normalizing the bodies of notes saved before
+     * bodies were normalized. How far the normalizing got is kept in the
+     * preferences, so it is only ever done once.
+     *
+     * Each run normalizes one batch of notes at low priority, then starts
+     * the next run, so other writes get the database between batches.
+     */
+    private class MaintenanceTask extends AsyncTask<Void, Void, Long> {
+        private final Context mContext = getApplicationContext();
+        private final SharedPreferences mPref = pref;
+        private final boolean mCollect;
+        private int mRemoved;
+
+        /**
+         * @param collect whether to clear out orphaned files first
+         */
+        MaintenanceTask(boolean collect) {
+            mCollect = collect;
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            NotesDbAdapter dbHelper = new NotesDbAdapter(mContext);
+            dbHelper.open();
+            try {
+                if (mCollect) {
+                    mRemoved = dbHelper.collectOrphanedBodies();
+                }
+
+                long last = mPref.getLong(PREF_NORMALIZED_THROUGH, 0);
+                if (last >= 0 && last < Long.MAX_VALUE && !isCancelled()) {
+                    last = dbHelper.normalizeNotes(last, NORMALIZE_BATCH_SIZE);
+                    mPref.edit().putLong(PREF_NORMALIZED_THROUGH,
+                            last >= 0 ? last : Long.MAX_VALUE).apply();
+                }
+                return last;
+            } finally {
+                dbHelper.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long last) {
+            if (mRemoved > 0) {
+                Log.i("NotesListActivity", "Removed " + mRemoved + " orphaned note files");
+            }
+            if (mMaintenanceTask != this) {
+                return;
+            }
+            if (last >= 0 && last < Long.MAX_VALUE) {
+                startMaintenance(false);
+            } else {
+                mMaintenanceTask = null;
+            }
+        }
+    }
 }
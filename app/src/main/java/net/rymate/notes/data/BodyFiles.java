@@ -0,0 +1,171 @@
+package net.rymate.notes.data;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Keeps the bodies of the largest notes in files of their own, under
+ * files/bodies in the app's storage, so they never pass through a
+ * CursorWindow or fill the database with overflow pages. The note's row
+ * only holds the file's name and the SHA-1 of its contents.
+ *
+ * Each version of a body gets a new file named after the note and its hash,
+ * so the file a committed row points at is never written to again. A file
+ * is written to a temporary name, synced and then renamed into place, so a
+ * crash leaves either the whole file or none of it. Files no row points at
+ * any more, such as one written just before a crash, are removed by
+ * {@link #collect(Set)}.
+ */
+class BodyFiles {
+
+    static final String DIRECTORY = "bodies";
+
+    private static final String SUFFIX = ".html";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Where a body was written.
+     */
+    static class Stored {
+        final String name;
+        final String hash;
+
+        Stored(String name, String hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+
+    private final File mDir;
+
+    BodyFiles(Context context) {
+        mDir = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Write a version of a note's body to its own file.
+     */
+    Stored write(long noteId, String body) throws IOException {
+        byte[] data = utf8(body);
+        String hash = toHex(sha1().digest(data));
+        String name = noteId + "-" + hash + SUFFIX;
+        File file = new File(mDir, name);
+        if (file.length() == data.length) {
+            // the same version was written before
+            return new Stored(name, hash);
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Couldn't create " + mDir);
+        }
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp + " to " + file);
+        }
+        return new Stored(name, hash);
+    }
+
+    /**
+     * Read a body through a read-only mapping of its file, which is checked
+     * against the hash it was written with.
+     */
+    String read(String name, String hash) throws IOException {
+        if (name == null || name.indexOf(File.separatorChar) >= 0) {
+            throw new IOException("Bad body file name " + name);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, name), "r");
+        MappedByteBuffer data;
+        try {
+            FileChannel channel = file.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid once the file is closed
+            file.close();
+        }
+
+        MessageDigest digest = sha1();
+        digest.update(data.duplicate());
+        if (!toHex(digest.digest()).equals(hash)) {
+            throw new IOException("Body file " + name + " doesn't match its hash");
+        }
+        return UTF_8.decode(data).toString();
+    }
+
+    /**
+     * Remove a body file that no row points at any more.
+     */
+    void delete(String name) {
+        if (name != null) {
+            new File(mDir, name).delete();
+        }
+    }
+
+    /**
+     * Remove every file that isn't one of the given ones, including
+     * temporary files left by a write that never finished. Nothing may be
+     * writing a body while this runs.
+     *
+     * @param referenced the names of the files rows point at
+     * @return the number of files removed
+     */
+    int collect(Set<String> referenced) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String body) {
+        try {
+            return body.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package net.rymate.notes.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs note bodies for the packed_body column of gen. The first byte of a
+ * packed body says how the rest is encoded, so the format can change
+ * without the stored notes being rewritten; for now it is always
+ * {@link #FORMAT_DEFLATE}, the UTF-8 of the body deflated.
+ */
+final class CompressedBody {
+
+    static final byte FORMAT_DEFLATE = 1;
+
+    private CompressedBody() {
+    }
+
+    static byte[] pack(String body) {
+        byte[] utf8 = utf8(body);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + 16);
+            out.write(FORMAT_DEFLATE);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IOException if the data isn't a packed body
+     */
+    static String unpack(byte[] packed) throws IOException {
+        if (packed == null || packed.length == 0 || packed[0] != FORMAT_DEFLATE) {
+            throw new IOException("Unknown body format");
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw deflate needs one byte past the end of the data to finish
+            byte[] input = new byte[packed.length];
+            System.arraycopy(packed, 1, input, 0, packed.length - 1);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated body");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toString("UTF-8");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] utf8(String body) {
+        try {
+            return body.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
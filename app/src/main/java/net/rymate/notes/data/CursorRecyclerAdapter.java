@@ -125,6 +125,26 @@ public abstract class CursorRecyclerAdapter<VH
         }
     }
 
+    /**
+     * Change to a new cursor over mostly the same rows, notifying only the
+     * rows that were added, removed, moved or changed so the rest keep their
+     * views and the list keeps its scroll position. If there is an existing
+     * cursor it will be closed.
+     *
+     * @param cursor The new cursor to be used
+     * @param diff The changes from the old cursor's rows to the new one's, or
+     *             null to rebind every row
+     */
+    public void changeCursor(Cursor cursor, NoteListSnapshot.Changes diff) {
+        Cursor old = swapCursor(cursor, diff == null);
+        if (diff != null && cursor != null) {
+            diff.dispatchUpdatesTo(this);
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
     /**
      * Swap in a new Cursor, returning the old Cursor. Unlike
      * {@link #changeCursor(Cursor)}, the returned old Cursor is <em>not</em>
@@ -136,6 +156,10 @@ public abstract class CursorRecyclerAdapter<VH
      * Cursor, null is also returned.
      */
     public Cursor swapCursor(Cursor newCursor) {
+        return swapCursor(newCursor, true);
+    }
+
+    private Cursor swapCursor(Cursor newCursor, boolean notify) {
         if (newCursor == mCursor) {
             return null;
         }
@@ -151,7 +175,9 @@ public abstract class CursorRecyclerAdapter<VH
             mRowIDColumn = newCursor.getColumnIndexOrThrow("_id");
             mDataValid = true;
 // notify the observers about the new cursor
-            notifyDataSetChanged();
+            if (notify) {
+                notifyDataSetChanged();
+            }
         } else {
             mRowIDColumn = -1;
             mDataValid = false;
@@ -0,0 +1,371 @@
+package net.rymate.notes.data;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Rewrites the HTML that Html.toHtml() produces for a note into a smaller,
+ * canonical form before it is stored, without changing how it looks once
+ * it is parsed again:
+ *
+ * <ul>
+ * <li>tag and attribute names are lower case, attribute values are
+ * quoted, and dir attributes are dropped</li>
+ * <li>a formatting tag nested inside the same tag, such as &lt;b&gt; inside
+ * &lt;b&gt;, is dropped, unless a tag of the same name with other
+ * attributes is open between them</li>
+ * <li>a formatting tag closed and opened again straight away, as in
+ * &lt;/b&gt;&lt;b&gt;, is joined into one</li>
+ * <li>empty formatting tags and comments are dropped</li>
+ * <li>characters written as numeric references are written as themselves,
+ * apart from markup, non-breaking and whitespace characters</li>
+ * </ul>
+ *
+ * Line breaks in the text are kept, so paragraphs stay on lines of their
+ * own. Normalizing a body that is already normal returns it unchanged.
+ */
+public final class HtmlNormalizer {
+
+    private static final String[] FORMATTING_TAGS = {"a", "b", "big", "cite", "del", "dfn",
+            "em", "font", "i", "s", "small", "span", "strike", "strong", "sub", "sup", "tt",
+            "u"};
+
+    private static final String[] VOID_TAGS = {"br", "hr", "img", "input", "link", "meta",
+            "wbr"};
+
+    /**
+     * An element that has been opened, and where it was written.
+     */
+    private static class Element {
+        final String name;
+        final String tag;
+        /** true for a duplicate that wasn't written, so neither is its end */
+        final boolean skipped;
+        int startPos;
+        int contentPos;
+        int endPos;
+        /** the elements that could be joined before this one was opened */
+        ArrayList<Element> closedBefore;
+
+        Element(String name, String tag, boolean skipped) {
+            this.name = name;
+            this.tag = tag;
+            this.skipped = skipped;
+        }
+    }
+
+    private final String mHtml;
+    private final StringBuilder mOut;
+    private final ArrayList<Element> mOpen = new ArrayList<Element>();
+    /** formatting elements just closed, with nothing written after them */
+    private final ArrayList<Element> mClosed = new ArrayList<Element>();
+
+    private HtmlNormalizer(String html) {
+        mHtml = html;
+        mOut = new StringBuilder(html.length());
+    }
+
+    /**
+     * @return the canonical form of the HTML, or null for null
+     */
+    public static String normalize(String html) {
+        if (html == null) {
+            return null;
+        }
+        return new HtmlNormalizer(html).run();
+    }
+
+    private String run() {
+        int length = mHtml.length();
+        int i = 0;
+        while (i < length) {
+            if (mHtml.charAt(i) == '<') {
+                i = tag(i);
+            } else {
+                int next = mHtml.indexOf('<', i);
+                if (next < 0) {
+                    next = length;
+                }
+                appendText(i, next);
+                i = next;
+            }
+        }
+        return mOut.toString();
+    }
+
+    /**
+     * Write the tag starting at the given '&lt;', if it is kept.
+     *
+     * @return the index just after the tag
+     */
+    private int tag(int start) {
+        if (mHtml.startsWith("<!--", start)) {
+            int close = mHtml.indexOf("-->", start + 4);
+            return close < 0 ? mHtml.length() : close + 3;
+        }
+
+        int end = mHtml.indexOf('>', start + 1);
+        boolean closing = start + 1 < mHtml.length() && mHtml.charAt(start + 1) == '/';
+        int nameStart = closing ? start + 2 : start + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < mHtml.length() && Character.isLetterOrDigit(mHtml.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (end < 0 || nameEnd == nameStart) {
+            // not a tag, so the '<' is text
+            if (end >= 0 && !closing && (mHtml.charAt(start + 1) == '!'
+                    || mHtml.charAt(start + 1) == '?')) {
+                return end + 1;
+            }
+            mClosed.clear();
+            mOut.append("&lt;");
+            return start + 1;
+        }
+
+        String name = mHtml.substring(nameStart, nameEnd).toLowerCase(Locale.US);
+        if (closing) {
+            close(name);
+            return end + 1;
+        }
+
+        int attributesEnd = mHtml.charAt(end - 1) == '/' ? end - 1 : end;
+        String tag = "<" + name + attributes(nameEnd, attributesEnd) + ">";
+        if (contains(VOID_TAGS, name)) {
+            mClosed.clear();
+            mOut.append(tag);
+        } else {
+            open(name, tag);
+        }
+        return end + 1;
+    }
+
+    private void open(String name, String tag) {
+        if (contains(FORMATTING_TAGS, name)) {
+            int last = mClosed.size() - 1;
+            if (last >= 0) {
+                Element closed = mClosed.get(last);
+                if (closed.tag.equals(tag)
+                        && mOut.length() == closed.endPos + closed.name.length() + 3) {
+                    // </b><b> carries on the element that was just closed
+                    mOut.setLength(closed.endPos);
+                    mClosed.remove(last);
+                    mOpen.add(closed);
+                    return;
+                }
+            }
+            for (int i = mOpen.size() - 1; i >= 0; i--) {
+                Element element = mOpen.get(i);
+                if (!element.name.equals(name)) {
+                    continue;
+                }
+                if (!element.tag.equals(tag)) {
+                    // as in <font color=A><font color=B><font color=A>, the
+                    // inner tag undoes the one between them, so it is kept
+                    break;
+                }
+                if (!element.skipped) {
+                    mOpen.add(new Element(name, tag, true));
+                    return;
+                }
+            }
+        }
+
+        Element element = new Element(name, tag, false);
+        element.closedBefore = new ArrayList<Element>(mClosed);
+        mClosed.clear();
+        element.startPos = mOut.length();
+        mOut.append(tag);
+        element.contentPos = mOut.length();
+        mOpen.add(element);
+    }
+
+    /**
+     * Close the innermost open element with the given name, and any opened
+     * inside it. An end tag with nothing open to close is dropped.
+     */
+    private void close(String name) {
+        int index = mOpen.size() - 1;
+        while (index >= 0 && !mOpen.get(index).name.equals(name)) {
+            index--;
+        }
+        if (index < 0) {
+            return;
+        }
+        for (int i = mOpen.size() - 1; i >= index; i--) {
+            end(mOpen.remove(i));
+        }
+    }
+
+    private void end(Element element) {
+        if (element.skipped) {
+            return;
+        }
+        boolean formatting = contains(FORMATTING_TAGS, element.name);
+        if (formatting && mOut.length() == element.contentPos) {
+            // as if it had never been opened
+            mOut.setLength(element.startPos);
+            mClosed.clear();
+            mClosed.addAll(element.closedBefore);
+            return;
+        }
+
+        element.endPos = mOut.length();
+        mOut.append("</").append(element.name).append('>');
+        if (formatting) {
+            mClosed.add(element);
+        } else {
+            mClosed.clear();
+        }
+    }
+
+    /**
+     * @return the attributes of a tag in canonical form, each with a space
+     * before it
+     */
+    private String attributes(int start, int end) {
+        StringBuilder attributes = new StringBuilder();
+        int i = start;
+        while (i < end) {
+            char c = mHtml.charAt(i);
+            if (Character.isWhitespace(c) || c == '/') {
+                i++;
+                continue;
+            }
+
+            int nameStart = i;
+            while (i < end && !Character.isWhitespace(mHtml.charAt(i))
+                    && mHtml.charAt(i) != '=' && mHtml.charAt(i) != '/') {
+                i++;
+            }
+            String name = mHtml.substring(nameStart, i).toLowerCase(Locale.US);
+            while (i < end && Character.isWhitespace(mHtml.charAt(i))) {
+                i++;
+            }
+
+            String value = null;
+            if (i < end && mHtml.charAt(i) == '=') {
+                i++;
+                while (i < end && Character.isWhitespace(mHtml.charAt(i))) {
+                    i++;
+                }
+                if (i < end && (mHtml.charAt(i) == '"' || mHtml.charAt(i) == '\'')) {
+                    char quote = mHtml.charAt(i);
+                    int close = mHtml.indexOf(quote, i + 1);
+                    if (close < 0 || close > end) {
+                        close = end;
+                    }
+                    value = mHtml.substring(i + 1, close);
+                    i = Math.min(close + 1, end);
+                } else {
+                    int valueStart = i;
+                    while (i < end && !Character.isWhitespace(mHtml.charAt(i))) {
+                        i++;
+                    }
+                    value = mHtml.substring(valueStart, i);
+                }
+            }
+
+            if (name.equals("dir") || name.length() == 0) {
+                continue;
+            }
+            attributes.append(' ').append(name);
+            if (value != null) {
+                attributes.append("=\"").append(value.replace("\"", "&quot;")).append('"');
+            }
+        }
+        return attributes.toString();
+    }
+
+    private void appendText(int start, int end) {
+        mClosed.clear();
+        int i = start;
+        while (i < end) {
+            char c = mHtml.charAt(i);
+            if (c == '&' && i + 2 < end && mHtml.charAt(i + 1) == '#') {
+                i = appendReference(i, end);
+            } else {
+                mOut.append(c);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Write the numeric character reference at the given '&amp;' as the
+     * character itself, unless it has to stay escaped.
+     *
+     * @return the index just after the reference
+     */
+    private int appendReference(int start, int end) {
+        int close = mHtml.indexOf(';', start + 2);
+        if (close < 0 || close >= end || close - start > 12) {
+            mOut.append('&');
+            return start + 1;
+        }
+
+        int codePoint = parseCodePoint(start + 2, close);
+        switch (codePoint) {
+            case -1:
+                mOut.append(mHtml, start, close + 1);
+                break;
+            case '&':
+                mOut.append("&amp;");
+                break;
+            case '<':
+                mOut.append("&lt;");
+                break;
+            case '>':
+                mOut.append("&gt;");
+                break;
+            case 0xa0:
+                mOut.append("&nbsp;");
+                break;
+            default:
+                if (codePoint < 0x20 || codePoint == 0x7f || Character.isWhitespace(codePoint)
+                        || Character.getType(codePoint) == Character.SURROGATE) {
+                    // these would change how the text is laid out or parsed
+                    mOut.append(mHtml, start, close + 1);
+                } else {
+                    mOut.appendCodePoint(codePoint);
+                }
+        }
+        return close + 1;
+    }
+
+    /**
+     * @return the code point of a numeric reference such as 233 or x00e9, or
+     * -1 if it isn't one
+     */
+    private int parseCodePoint(int start, int end) {
+        int radix = 10;
+        if (start < end && (mHtml.charAt(start) == 'x' || mHtml.charAt(start) == 'X')) {
+            radix = 16;
+            start++;
+        }
+        if (start == end) {
+            return -1;
+        }
+
+        int codePoint = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(mHtml.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            codePoint = codePoint * radix + digit;
+            if (codePoint > Character.MAX_CODE_POINT) {
+                return -1;
+            }
+        }
+        return codePoint;
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String each : names) {
+            if (each.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,249 @@
+package net.rymate.notes.data;
+
+/**
+ * Turns the HTML stored in note bodies into plain text in a single pass over
+ * the string, writing straight into one StringBuilder. Unlike
+ * Html.fromHtml() it builds no spans or intermediate strings, and it can stop
+ * as soon as it has as much text as the caller needs.
+ *
+ * Tags are dropped, with block tags and line breaks turned into new lines.
+ * The contents of comments, script and style are skipped, runs of whitespace
+ * collapse to one space the way a browser shows them, and character
+ * references are decoded.
+ */
+public final class HtmlStripper {
+
+    private HtmlStripper() {
+    }
+
+    /**
+     * @return the plain text of the HTML, or an empty string for null
+     */
+    public static String strip(String html) {
+        return strip(html, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxLength the most characters of text to return
+     * @return the start of the plain text of the HTML, or an empty string
+     * for null
+     */
+    public static String strip(String html, int maxLength) {
+        if (html == null) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder(Math.min(html.length(), maxLength));
+        int length = html.length();
+        int i = 0;
+        while (i < length && out.length() < maxLength) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                i = skipTag(html, i, out);
+            } else if (c == '&') {
+                i = appendReference(html, i, out);
+            } else if (isSpace(c)) {
+                appendSpace(out);
+                i++;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+
+        int end = out.length();
+        while (end > 0 && isSpace(out.charAt(end - 1))) {
+            end--;
+        }
+        if (end > maxLength) {
+            end = maxLength;
+            if (Character.isHighSurrogate(out.charAt(end - 1))) {
+                end--;
+            }
+        }
+        out.setLength(end);
+        return out.toString();
+    }
+
+    /**
+     * Skip the tag starting at the given '&lt;', and anything inside it that
+     * isn't shown.
+     *
+     * @return the index just after the tag
+     */
+    private static int skipTag(String html, int start, StringBuilder out) {
+        if (html.startsWith("!--", start + 1)) {
+            int close = html.indexOf("-->", start + 4);
+            return close < 0 ? html.length() : close + 3;
+        }
+
+        int end = html.indexOf('>', start + 1);
+        if (end < 0) {
+            // an unterminated tag hides the rest of the document
+            return html.length();
+        }
+
+        boolean closing = start + 1 < end && html.charAt(start + 1) == '/';
+        int nameStart = closing ? start + 2 : start + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < end && Character.isLetterOrDigit(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+
+        if (!closing && (isTag(html, nameStart, nameEnd, "script")
+                || isTag(html, nameStart, nameEnd, "style"))) {
+            return skipElement(html, end + 1, nameStart, nameEnd);
+        }
+        if (isTag(html, nameStart, nameEnd, "br")) {
+            trimSpace(out);
+            out.append('\n');
+        } else if (isBlock(html, nameStart, nameEnd)) {
+            appendLineBreak(out);
+        }
+        return end + 1;
+    }
+
+    /**
+     * @return the index just after the closing tag of the element whose name
+     * is at nameStart, or the end of the document if it isn't closed
+     */
+    private static int skipElement(String html, int from, int nameStart, int nameEnd) {
+        int nameLength = nameEnd - nameStart;
+        int close = html.indexOf("</", from);
+        while (close >= 0) {
+            if (html.regionMatches(true, close + 2, html, nameStart, nameLength)) {
+                int end = html.indexOf('>', close);
+                return end < 0 ? html.length() : end + 1;
+            }
+            close = html.indexOf("</", close + 2);
+        }
+        return html.length();
+    }
+
+    private static boolean isBlock(String html, int nameStart, int nameEnd) {
+        int nameLength = nameEnd - nameStart;
+        if (nameLength == 2 && (html.charAt(nameStart) == 'h' || html.charAt(nameStart) == 'H')) {
+            char level = html.charAt(nameStart + 1);
+            if (level >= '1' && level <= '6') {
+                return true;
+            }
+        }
+        return isTag(html, nameStart, nameEnd, "p")
+                || isTag(html, nameStart, nameEnd, "div")
+                || isTag(html, nameStart, nameEnd, "li")
+                || isTag(html, nameStart, nameEnd, "ul")
+                || isTag(html, nameStart, nameEnd, "ol")
+                || isTag(html, nameStart, nameEnd, "tr")
+                || isTag(html, nameStart, nameEnd, "blockquote");
+    }
+
+    private static boolean isTag(String html, int nameStart, int nameEnd, String name) {
+        return nameEnd - nameStart == name.length()
+                && html.regionMatches(true, nameStart, name, 0, name.length());
+    }
+
+    /**
+     * Decode the character reference starting at the given '&amp;'. Anything
+     * that isn't a known reference is kept as it is.
+     *
+     * @return the index just after the reference
+     */
+    private static int appendReference(String html, int start, StringBuilder out) {
+        int end = html.indexOf(';', start + 1);
+        if (end < 0 || end - start > 10) {
+            out.append('&');
+            return start + 1;
+        }
+
+        if (html.charAt(start + 1) == '#') {
+            int codePoint = parseCodePoint(html, start + 2, end);
+            if (codePoint < 0) {
+                out.append('&');
+                return start + 1;
+            }
+            if (Character.isWhitespace(codePoint)) {
+                appendSpace(out);
+            } else {
+                out.appendCodePoint(codePoint);
+            }
+            return end + 1;
+        }
+
+        int nameStart = start + 1;
+        if (isTag(html, nameStart, end, "amp")) {
+            out.append('&');
+        } else if (isTag(html, nameStart, end, "lt")) {
+            out.append('<');
+        } else if (isTag(html, nameStart, end, "gt")) {
+            out.append('>');
+        } else if (isTag(html, nameStart, end, "quot")) {
+            out.append('"');
+        } else if (isTag(html, nameStart, end, "apos")) {
+            out.append('\'');
+        } else if (isTag(html, nameStart, end, "nbsp")) {
+            appendSpace(out);
+        } else {
+            out.append('&');
+            return start + 1;
+        }
+        return end + 1;
+    }
+
+    /**
+     * @return the code point of a numeric reference such as 233 or x00e9, or
+     * -1 if it isn't one
+     */
+    private static int parseCodePoint(String html, int start, int end) {
+        int radix = 10;
+        if (start < end && (html.charAt(start) == 'x' || html.charAt(start) == 'X')) {
+            radix = 16;
+            start++;
+        }
+        if (start == end) {
+            return -1;
+        }
+
+        int codePoint = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(html.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            codePoint = codePoint * radix + digit;
+        }
+        return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Whitespace in HTML shows as a single space, and none at the start of a
+     * line.
+     */
+    private static void appendSpace(StringBuilder out) {
+        int length = out.length();
+        if (length > 0 && !isSpace(out.charAt(length - 1))) {
+            out.append(' ');
+        }
+    }
+
+    /**
+     * Start a new line, unless already at the start of one.
+     */
+    private static void appendLineBreak(StringBuilder out) {
+        trimSpace(out);
+        int length = out.length();
+        if (length > 0 && out.charAt(length - 1) != '\n') {
+            out.append('\n');
+        }
+    }
+
+    private static void trimSpace(StringBuilder out) {
+        int length = out.length();
+        if (length > 0 && out.charAt(length - 1) == ' ') {
+            out.setLength(length - 1);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package net.rymate.notes.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.Html;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves a note while it is being edited. Edits are gathered until the user
+ * stops typing for a moment, then the editor's text is copied and handed to
+ * a background writer, which turns it into HTML and writes it there. When
+ * the user saves the note themselves, {@link #saveNow} hands that version to
+ * the same writer, so it is written after any autosave already in progress.
+ *
+ * All autosavers share one writer thread. Each one holds at most one waiting
+ * version of its note; a newer version replaces it rather than queueing
+ * behind it, so there is never more than one write per note in flight.
+ */
+public class NoteAutosaver {
+    private static final String TAG = "NoteAutosaver";
+
+    /**
+     * How long the editor has to be left alone before it is saved
+     */
+    public static final long QUIET_PERIOD = 1500;
+
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * Gives the autosaver the current state of the editor.
+     */
+    public interface DraftSource {
+        /**
+         * Called on the UI thread.
+         *
+         * @return the note as it is now, or null if it shouldn't be saved
+         */
+        Draft getDraft();
+    }
+
+    /**
+     * Told on the UI thread when the autosaver has written the note.
+     */
+    public interface OnSavedListener {
+        void onSaved(long rowId, boolean created);
+    }
+
+    /**
+     * Told on the UI thread when a save asked for with {@link #saveNow} has
+     * finished.
+     */
+    public interface OnSaveFinishedListener {
+        /**
+         * @param rowId the note's rowId, which is set if it was just created
+         * @param saved false if the note couldn't be written
+         */
+        void onSaveFinished(long rowId, boolean saved);
+    }
+
+    /**
+     * A version of a note to save. The body is copied, so the editor can
+     * carry on changing while the copy is written.
+     */
+    public static class Draft {
+        final String title;
+        final Spanned body;
+        final int category;
+
+        public Draft(String title, CharSequence body, int category) {
+            this.title = title;
+            this.body = new SpannableString(body);
+            this.category = category;
+        }
+    }
+
+    private final Context mContext;
+    private final DraftSource mSource;
+    private final Handler mHandler = new Handler();
+    private final AtomicReference<Draft> mPending = new AtomicReference<Draft>();
+    private final AtomicBoolean mQueued = new AtomicBoolean();
+    private volatile long mRowId;
+    private OnSavedListener mListener;
+    private boolean mDirty;
+    private boolean mDiscarded;
+
+    // only touched by the writer thread
+    private String mWrittenTitle;
+    private String mWrittenBody;
+    private int mWrittenCategory;
+
+    private final Runnable mSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            mQueued.set(false);
+            Draft draft = mPending.getAndSet(null);
+            if (draft != null && !write(draft, true)) {
+                // leave the note dirty so the next edit or flush tries again
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDiscarded) {
+                            mDirty = true;
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * @param rowId the note being edited, or -1 for a note that hasn't been
+     *              saved yet
+     */
+    public NoteAutosaver(Context context, long rowId, DraftSource source) {
+        mContext = context.getApplicationContext();
+        mRowId = rowId;
+        mSource = source;
+    }
+
+    public void setOnSavedListener(OnSavedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return a watcher to add to the editor's text fields
+     */
+    public TextWatcher newTextWatcher() {
+        return new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                onEdited();
+            }
+        };
+    }
+
+    /**
+     * Note that the user changed something. The note is saved once nothing
+     * else has changed for {@link #QUIET_PERIOD}.
+     */
+    public void onEdited() {
+        if (mDiscarded) {
+            return;
+        }
+        mDirty = true;
+        mHandler.removeCallbacks(mSnapshot);
+        mHandler.postDelayed(mSnapshot, QUIET_PERIOD);
+    }
+
+    /**
+     * Save any change now rather than waiting for the quiet period, such as
+     * when the editor is paused. Returns without waiting for the write.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mSnapshot);
+        if (mDirty && !mDiscarded) {
+            save();
+        }
+    }
+
+    /**
+     * Save a version of the note now, such as when the user presses save.
+     * Any change still waiting to be autosaved is dropped, as this version
+     * replaces it. Returns without waiting; the version is written on the
+     * writer thread after the write in progress, if there is one.
+     *
+     * @param listener told when the note has been written, or null
+     */
+    public void saveNow(final Draft draft, final OnSaveFinishedListener listener) {
+        mHandler.removeCallbacks(mSnapshot);
+        mPending.set(null);
+        mDirty = false;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean saved = write(draft, false);
+                final long rowId = mRowId;
+                if (listener != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSaveFinished(rowId, saved);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop saving the note, such as when the user cancels the edit. A write
+     * already in progress still finishes.
+     */
+    public void discard() {
+        mHandler.removeCallbacks(mSnapshot);
+        mPending.set(null);
+        mDirty = false;
+        mDiscarded = true;
+    }
+
+    private void save() {
+        Draft draft = mSource.getDraft();
+        if (draft == null) {
+            return;
+        }
+        mDirty = false;
+        mPending.set(draft);
+        if (mQueued.compareAndSet(false, true)) {
+            sWriter.execute(mWrite);
+        }
+    }
+
+    /**
+     * Write a version of the note, unless it is the one written last.
+     *
+     * @param notify whether to tell the OnSavedListener
+     * @return true if the note holds the version now, false if it couldn't
+     * be written, which is logged rather than thrown
+     */
+    private boolean write(Draft draft, final boolean notify) {
+        NotesDbAdapter dbHelper = new NotesDbAdapter(mContext);
+        try {
+            String body = Html.toHtml(draft.body);
+            if (body.equals(mWrittenBody) && draft.title.equals(mWrittenTitle)
+                    && draft.category == mWrittenCategory) {
+                return true;
+            }
+
+            dbHelper.open();
+            final boolean created = mRowId < 0;
+            boolean saved;
+            if (created) {
+                long id = dbHelper.createNote(draft.title, body, draft.category);
+                saved = id > 0;
+                if (saved) {
+                    mRowId = id;
+                }
+            } else {
+                saved = dbHelper.updateNote(mRowId, draft.title, body, draft.category);
+            }
+
+            if (!saved) {
+                Log.w(TAG, "Couldn't save note " + mRowId);
+                return false;
+            }
+            mWrittenTitle = draft.title;
+            mWrittenBody = body;
+            mWrittenCategory = draft.category;
+
+            final long rowId = mRowId;
+            if (notify) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener != null && !mDiscarded) {
+                            mListener.onSaved(rowId, created);
+                        }
+                    }
+                });
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // a failed write mustn't take the writer thread, and the app, with it
+            Log.e(TAG, "Couldn't save note " + mRowId, e);
+            return false;
+        } finally {
+            dbHelper.close();
+        }
+    }
+}
\ No newline at end of file
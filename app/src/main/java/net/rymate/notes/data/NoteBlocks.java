@@ -0,0 +1,236 @@
+package net.rymate.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Stores the body of a large note as a run of blocks in the note_blocks
+ * table, so that saving it only writes the blocks that changed.
+ *
+ * A body is cut into blocks at the first line break after
+ * {@link #MIN_BLOCK} characters, which is the end of a paragraph in the HTML
+ * the editor writes. The cuts only depend on the text since the last one, so
+ * after an edit they soon fall back into step with the cuts made before it,
+ * and the blocks after the edit come out the same as the ones already
+ * stored. Saving compares the hashes of the old and new blocks from both
+ * ends, and only deletes and inserts the ones in between.
+ *
+ * Blocks are ordered by ord, which leaves gaps of {@link #ORD_GAP} so blocks
+ * can be inserted between others without renumbering them.
+ *
+ * Like {@link NoteStatements}, callers hold the lock on the adapter's
+ * statements while writing, and write inside a transaction.
+ */
+class NoteBlocks {
+
+    static final String TABLE = "note_blocks";
+    static final String KEY_CONTENT = "content";
+
+    static final String TABLE_CREATE =
+            "create table note_blocks (_id integer primary key autoincrement, "
+                    + "note_id integer not null, ord integer not null, "
+                    + "hash integer not null, content text not null);";
+
+    static final String INDEX_CREATE =
+            "create index note_blocks_note on note_blocks (note_id, ord);";
+
+    static final String DELETE_TRIGGER =
+            "create trigger gen_blocks_delete after delete on gen begin "
+                    + "delete from note_blocks where note_id = old._id; end;";
+
+    /**
+     * Blocks are cut at the first line break after this many characters
+     */
+    static final int MIN_BLOCK = 2 * 1024;
+
+    /**
+     * A block without a line break is cut here
+     */
+    static final int MAX_BLOCK = 32 * 1024;
+
+    private static final long ORD_GAP = 1 << 16;
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+    private final SQLiteStatement mDelete;
+    private final SQLiteStatement mDeleteAll;
+    private final SQLiteStatement mMove;
+
+    NoteBlocks(SQLiteDatabase db) {
+        mDb = db;
+        mInsert = db.compileStatement("INSERT INTO " + TABLE
+                + " (note_id, ord, hash, content) VALUES (?, ?, ?, ?)");
+        mDelete = db.compileStatement("DELETE FROM " + TABLE + " WHERE "
+                + NotesDbAdapter.KEY_ROWID + " = ?");
+        mDeleteAll = db.compileStatement("DELETE FROM " + TABLE + " WHERE note_id = ?");
+        mMove = db.compileStatement("UPDATE " + TABLE + " SET ord = ? WHERE "
+                + NotesDbAdapter.KEY_ROWID + " = ?");
+    }
+
+    /**
+     * Store a new version of a note's body, writing only the blocks that
+     * differ from the ones stored.
+     *
+     * @return the number of blocks written
+     */
+    int write(long noteId, String body) {
+        long[] oldIds;
+        long[] oldOrds;
+        long[] oldHashes;
+        Cursor old = mDb.rawQuery("SELECT " + NotesDbAdapter.KEY_ROWID + ", ord, hash FROM "
+                + TABLE + " WHERE note_id = ? ORDER BY ord",
+                new String[] {String.valueOf(noteId)});
+        try {
+            int count = old.getCount();
+            oldIds = new long[count];
+            oldOrds = new long[count];
+            oldHashes = new long[count];
+            for (int i = 0; old.moveToNext(); i++) {
+                oldIds[i] = old.getLong(0);
+                oldOrds[i] = old.getLong(1);
+                oldHashes[i] = old.getLong(2);
+            }
+        } finally {
+            old.close();
+        }
+
+        int[] cuts = split(body);
+        int count = cuts.length - 1;
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(body, cuts[i], cuts[i + 1]);
+        }
+
+        int max = Math.min(oldIds.length, count);
+        int prefix = 0;
+        while (prefix < max && oldHashes[prefix] == hashes[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && oldHashes[oldIds.length - 1 - suffix] == hashes[count - 1 - suffix]) {
+            suffix++;
+        }
+
+        for (int i = prefix; i < oldIds.length - suffix; i++) {
+            mDelete.bindLong(1, oldIds[i]);
+            mDelete.executeUpdateDelete();
+        }
+
+        int inserted = count - prefix - suffix;
+        long low = prefix > 0 ? oldOrds[prefix - 1] : 0;
+        long high = suffix > 0 ? oldOrds[oldIds.length - suffix] : low + (inserted + 1) * ORD_GAP;
+        long step = (high - low) / (inserted + 1);
+        if (step == 0) {
+            // no room left between the blocks around the edit, so the ones
+            // after it move up to make some
+            step = ORD_GAP;
+            long ord = low + (inserted + 1) * step;
+            for (int i = oldIds.length - suffix; i < oldIds.length; i++) {
+                mMove.bindLong(1, ord);
+                mMove.bindLong(2, oldIds[i]);
+                mMove.executeUpdateDelete();
+                ord += step;
+            }
+        }
+
+        for (int i = 0; i < inserted; i++) {
+            int block = prefix + i;
+            mInsert.bindLong(1, noteId);
+            mInsert.bindLong(2, low + (i + 1) * step);
+            mInsert.bindLong(3, hashes[block]);
+            mInsert.bindString(4, body.substring(cuts[block], cuts[block + 1]));
+            mInsert.executeInsert();
+        }
+        return inserted;
+    }
+
+    /**
+     * @return the body of a note put back together from its blocks
+     */
+    String read(long noteId) {
+        Cursor blocks = query(noteId);
+        try {
+            StringBuilder body = new StringBuilder();
+            while (blocks.moveToNext()) {
+                body.append(blocks.getString(1));
+            }
+            return body.toString();
+        } finally {
+            blocks.close();
+        }
+    }
+
+    /**
+     * @return Cursor over the _id and content of each block of a note, in
+     * order
+     */
+    Cursor query(long noteId) {
+        return mDb.rawQuery("SELECT " + NotesDbAdapter.KEY_ROWID + ", " + KEY_CONTENT + " FROM "
+                + TABLE + " WHERE note_id = ? ORDER BY ord",
+                new String[] {String.valueOf(noteId)});
+    }
+
+    /**
+     * Drop the blocks of a note, when its body is stored in gen again.
+     */
+    void clear(long noteId) {
+        mDeleteAll.bindLong(1, noteId);
+        mDeleteAll.executeUpdateDelete();
+    }
+
+    void close() {
+        mInsert.close();
+        mDelete.close();
+        mDeleteAll.close();
+        mMove.close();
+    }
+
+    /**
+     * @return the index each block starts at, followed by the length of the
+     * body
+     */
+    static int[] split(String body) {
+        int length = body.length();
+        int[] cuts = new int[length / MIN_BLOCK + 2];
+        int count = 0;
+        int start = 0;
+        do {
+            if (count == cuts.length - 1) {
+                int[] grown = new int[cuts.length * 2];
+                System.arraycopy(cuts, 0, grown, 0, count);
+                cuts = grown;
+            }
+            cuts[count++] = start;
+
+            int limit = Math.min(start + MAX_BLOCK, length);
+            int end = Math.min(start + MIN_BLOCK, length);
+            while (end < limit && body.charAt(end - 1) != '\n') {
+                end++;
+            }
+            if (end < length && Character.isHighSurrogate(body.charAt(end - 1))) {
+                end--;
+            }
+            start = end;
+        } while (start < length);
+
+        cuts[count++] = length;
+        int[] result = new int[count];
+        System.arraycopy(cuts, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of part of the body, so two different blocks
+     * practically never compare as equal.
+     */
+    static long hash(String body, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= body.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,185 @@
+package net.rymate.notes.data;
+
+import android.database.Cursor;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.HashMap;
+
+/**
+ * The ids of a list of notes in the order they are shown, with a version of
+ * each note that changes whenever what the list shows of it does. Two
+ * snapshots of a list can be compared to find which rows were added, removed,
+ * moved or changed between them.
+ *
+ * A snapshot of a paged list only covers the rows at the top of it that are
+ * in memory, so a reload never reads or diffs more than a few pages however
+ * long the list is. The rows below those are simply rebound.
+ */
+public class NoteListSnapshot {
+    private final long[] mIds;
+    private final long[] mVersions;
+    private final int mTotal;
+
+    NoteListSnapshot(long[] ids, long[] versions, int total) {
+        mIds = ids;
+        mVersions = versions;
+        mTotal = total;
+    }
+
+    /**
+     * Take a snapshot of the notes a cursor is over. A paged cursor gives
+     * the rows it has loaded from the top of the list, without querying or
+     * moving it, so that can be done at any time on any thread. Other
+     * cursors are read row by row, so snapshot them off the UI thread before
+     * they are shown.
+     *
+     * @param cursor a cursor over notes, which is left before its first row
+     */
+    public static NoteListSnapshot of(Cursor cursor) {
+        if (cursor instanceof PagedNotesCursor) {
+            return ((PagedNotesCursor) cursor).loadedRows();
+        }
+
+        int id = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID);
+        int modified = cursor.getColumnIndex(NotesDbAdapter.KEY_MODIFIED);
+        int title = cursor.getColumnIndex(NotesDbAdapter.KEY_TITLE);
+        int preview = cursor.getColumnIndex(NotesDbAdapter.KEY_PREVIEW);
+
+        long[] ids = new long[cursor.getCount()];
+        long[] versions = new long[ids.length];
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(id);
+            if (modified >= 0) {
+                versions[i] = cursor.getLong(modified);
+            } else {
+                versions[i] = 31L * hash(cursor, title) + hash(cursor, preview);
+            }
+        }
+        cursor.moveToPosition(-1);
+        return new NoteListSnapshot(ids, versions, ids.length);
+    }
+
+    /**
+     * @return true if the snapshot of a cursor can be taken when the next
+     * load needs it rather than before the cursor is shown
+     */
+    public static boolean canTakeLater(Cursor cursor) {
+        return cursor instanceof PagedNotesCursor;
+    }
+
+    /**
+     * Take a snapshot of the rows of a newer cursor over the same list that
+     * line up with this snapshot: as many rows from the top as this one
+     * covers, give or take the notes added or removed since. A paged cursor
+     * loads the pages those rows are on, which it will show first anyway.
+     *
+     * @return the snapshot, or null if the two can't be lined up and every
+     * row should be rebound instead
+     */
+    public NoteListSnapshot sameRowsOf(Cursor cursor) {
+        if (!(cursor instanceof PagedNotesCursor)) {
+            return of(cursor);
+        }
+        int rows = mIds.length + cursor.getCount() - mTotal;
+        if (mIds.length == 0 || rows < 0 || rows > PagedNotesCursor.MAX_ROWS) {
+            return null;
+        }
+        return ((PagedNotesCursor) cursor).firstRows(rows);
+    }
+
+    private static int hash(Cursor cursor, int column) {
+        if (column < 0) {
+            return 0;
+        }
+        String value = cursor.getString(column);
+        return value == null ? 0 : value.hashCode();
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * Work out the changes from this list to a newer one. This can take a
+     * while for a long list, so call it off the UI thread.
+     *
+     * @return the changes, or null if the snapshots don't line up and every
+     * row should be rebound instead
+     */
+    public Changes diff(final NoteListSnapshot newer) {
+        if (newer.mIds.length - mIds.length != newer.mTotal - mTotal) {
+            return null;
+        }
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return mIds.length;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newer.mIds.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return mIds[oldItemPosition] == newer.mIds[newItemPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return mVersions[oldItemPosition] == newer.mVersions[newItemPosition];
+            }
+        }, canHaveMoved(newer));
+        return new Changes(diff, newer.mIds.length);
+    }
+
+    /**
+     * A note only moves in the list when its sort key changes, which changes
+     * its version too. If every note in both lists kept its version, none of
+     * them moved, and the diff needn't look for moves.
+     */
+    private boolean canHaveMoved(NoteListSnapshot newer) {
+        HashMap<Long, Long> versions = new HashMap<Long, Long>(mIds.length * 2);
+        for (int i = 0; i < mIds.length; i++) {
+            versions.put(mIds[i], mVersions[i]);
+        }
+        for (int i = 0; i < newer.mIds.length; i++) {
+            Long version = versions.get(newer.mIds[i]);
+            if (version != null && version != newer.mVersions[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The changes between two snapshots, for an adapter that has just been
+     * given the newer list.
+     */
+    public static class Changes {
+        private final DiffUtil.DiffResult mDiff;
+        private final int mRebindFrom;
+
+        Changes(DiffUtil.DiffResult diff, int rebindFrom) {
+            mDiff = diff;
+            mRebindFrom = rebindFrom;
+        }
+
+        /**
+         * Notify the adapter of the rows that were added, removed, moved or
+         * changed, and rebind the rows past the end of the snapshots, which
+         * weren't compared.
+         */
+        public void dispatchUpdatesTo(RecyclerView.Adapter adapter) {
+            mDiff.dispatchUpdatesTo(adapter);
+            int count = adapter.getItemCount();
+            if (mRebindFrom < count) {
+                adapter.notifyItemRangeChanged(mRebindFrom, count - mRebindFrom);
+            }
+        }
+    }
+}
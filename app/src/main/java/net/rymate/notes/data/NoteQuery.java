@@ -0,0 +1,195 @@
+package net.rymate.notes.data;
+
+import java.util.ArrayList;
+
+/**
+ * A query over the notes, built from the filters a list needs and compiled
+ * into a single SQL statement. Values are always bound as parameters and
+ * never written into the SQL, so every query of the same shape compiles to
+ * the same statement and SQLite can reuse it from its statement cache.
+ *
+ * <pre>
+ * Cursor notes = dbHelper.query(new NoteQuery()
+ *         .inCategories(0, 1)
+ *         .matching("meeting")
+ *         .sortBy(NotesDbAdapter.SORT_MODIFIED)
+ *         .limit(50));
+ * </pre>
+ *
+ * Run it with {@link NotesDbAdapter#query(NoteQuery)}.
+ */
+public class NoteQuery {
+
+    static final String[] DEFAULT_COLUMNS = {NotesDbAdapter.KEY_ROWID,
+            NotesDbAdapter.KEY_TITLE, NotesDbAdapter.KEY_PREVIEW};
+
+    private String[] mColumns = DEFAULT_COLUMNS;
+    private int[] mCatIds;
+    private String mMatch;
+    private boolean mMatchNothing;
+    private int mSort = NotesDbAdapter.SORT_TITLE;
+    private int mLimit = -1;
+    private int mOffset;
+    private String mAfterKey;
+    private long mAfterId;
+
+    /**
+     * Copy another query, so it can be changed without changing the original.
+     */
+    public NoteQuery copy() {
+        NoteQuery copy = new NoteQuery();
+        copy.mColumns = mColumns;
+        copy.mCatIds = mCatIds;
+        copy.mMatch = mMatch;
+        copy.mMatchNothing = mMatchNothing;
+        copy.mSort = mSort;
+        copy.mLimit = mLimit;
+        copy.mOffset = mOffset;
+        copy.mAfterKey = mAfterKey;
+        copy.mAfterId = mAfterId;
+        return copy;
+    }
+
+    /**
+     * The columns of gen to return. The default is _id, title and preview.
+     */
+    public NoteQuery columns(String... columns) {
+        mColumns = columns;
+        return this;
+    }
+
+    /**
+     * Only return notes in one of these categories. With none, or null,
+     * notes from every category are returned.
+     */
+    public NoteQuery inCategories(int... catIds) {
+        mCatIds = catIds != null && catIds.length > 0 ? catIds : null;
+        return this;
+    }
+
+    /**
+     * Only return notes whose title or text contains every word of the text,
+     * the last word matched as a prefix. Text without any words matches no
+     * notes; null removes the filter.
+     *
+     * @param text a search query as typed by the user
+     */
+    public NoteQuery matching(String text) {
+        mMatch = NotesDbAdapter.toMatchQuery(text);
+        mMatchNothing = text != null && mMatch == null;
+        return this;
+    }
+
+    /**
+     * @param sort one of the NotesDbAdapter.SORT_ constants
+     */
+    public NoteQuery sortBy(int sort) {
+        mSort = sort;
+        return this;
+    }
+
+    /**
+     * Return at most this many notes, or all of them if negative.
+     */
+    public NoteQuery limit(int limit) {
+        mLimit = limit;
+        return this;
+    }
+
+    /**
+     * Skip this many notes before the first one returned. Prefer
+     * {@link #after(Object, long)} for paging, which doesn't have to step over
+     * the skipped notes.
+     */
+    public NoteQuery offset(int offset) {
+        mOffset = offset;
+        return this;
+    }
+
+    /**
+     * Only return the notes that come after the given note in the sort order.
+     *
+     * @param sortKey the given note's value of the column being sorted by
+     * @param id the given note's _id
+     */
+    public NoteQuery after(Object sortKey, long id) {
+        mAfterKey = String.valueOf(sortKey);
+        mAfterId = id;
+        return this;
+    }
+
+    int getSort() {
+        return mSort;
+    }
+
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return the SQL of the statement, with a ? for every value
+     */
+    String getSql() {
+        return compile(null);
+    }
+
+    /**
+     * @return the values to bind to the statement, in order
+     */
+    String[] getArgs() {
+        ArrayList<String> args = new ArrayList<String>();
+        compile(args);
+        return args.toArray(new String[args.size()]);
+    }
+
+    private String compile(ArrayList<String> args) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < mColumns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(mColumns[i]);
+        }
+        sql.append(" FROM ").append(NotesDbAdapter.DATABASE_TABLE);
+
+        ArrayList<String> where = new ArrayList<String>();
+        if (mMatchNothing) {
+            where.add("0");
+        }
+        if (mCatIds != null) {
+            StringBuilder in = new StringBuilder(NotesDbAdapter.KEY_CATID).append(" IN (");
+            for (int i = 0; i < mCatIds.length; i++) {
+                in.append(i > 0 ? ", ?" : "?");
+                add(args, String.valueOf(mCatIds[i]));
+            }
+            where.add(in.append(')').toString());
+        }
+        if (mMatch != null) {
+            where.add(NotesDbAdapter.KEY_ROWID + " IN (SELECT docid FROM "
+                    + NotesDbAdapter.FTS_TABLE + " WHERE " + NotesDbAdapter.FTS_TABLE
+                    + " MATCH ?)");
+            add(args, mMatch);
+        }
+        if (mAfterKey != null) {
+            where.add(NotesDbAdapter.keysetSelection(mSort));
+            add(args, mAfterKey);
+            add(args, mAfterKey);
+            add(args, String.valueOf(mAfterId));
+        }
+
+        for (int i = 0; i < where.size(); i++) {
+            sql.append(i > 0 ? " AND " : " WHERE ").append(where.get(i));
+        }
+        sql.append(" ORDER BY ").append(NotesDbAdapter.orderBy(mSort));
+
+        if (mLimit >= 0 || mOffset > 0) {
+            sql.append(" LIMIT ? OFFSET ?");
+            add(args, String.valueOf(mLimit));
+            add(args, String.valueOf(mOffset));
+        }
+        return sql.toString();
+    }
+
+    private static void add(ArrayList<String> args, String value) {
+        if (args != null) {
+            args.add(value);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.rymate.notes.data;
+
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The statements behind the adapter's single note writes, compiled once for
+ * the shared connection and then run again with new arguments bound, instead
+ * of building ContentValues and new SQL for every call.
+ *
+ * A statement can only be used by one thread at a time, so callers hold the
+ * lock on this object for the whole write, including its transaction.
+ */
+class NoteStatements {
+    private final SQLiteStatement mInsertNote;
+    private final SQLiteStatement mUpdateNote;
+    private final SQLiteStatement mDeleteNote;
+    private final SQLiteStatement mCategoryOf;
+    private final SQLiteStatement mBodyFileOf;
+    private final SQLiteStatement mSetBodyFile;
+    private final SQLiteStatement mInsertCategory;
+    private final SQLiteStatement mDeleteIndex;
+    private final SQLiteStatement mInsertIndex;
+    private final SQLiteStatement mIsIndexed;
+
+    NoteStatements(SQLiteDatabase db) {
+        mInsertNote = db.compileStatement("INSERT INTO " + NotesDbAdapter.DATABASE_TABLE
+                + " (" + NotesDbAdapter.KEY_TITLE + ", " + NotesDbAdapter.KEY_BODY + ", "
+                + NotesDbAdapter.KEY_CATID + ", " + NotesDbAdapter.KEY_CREATED + ", "
+                + NotesDbAdapter.KEY_MODIFIED + ", " + NotesDbAdapter.KEY_PREVIEW + ", "
+                + NotesDbAdapter.KEY_STORAGE + ", " + NotesDbAdapter.KEY_PACKED_BODY
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        mUpdateNote = db.compileStatement("UPDATE " + NotesDbAdapter.DATABASE_TABLE + " SET "
+                + NotesDbAdapter.KEY_TITLE + " = ?, " + NotesDbAdapter.KEY_BODY + " = ?, "
+                + NotesDbAdapter.KEY_CATID + " = ?, " + NotesDbAdapter.KEY_MODIFIED + " = ?, "
+                + NotesDbAdapter.KEY_PREVIEW + " = ?, " + NotesDbAdapter.KEY_STORAGE + " = ?, "
+                + NotesDbAdapter.KEY_PACKED_BODY + " = ? WHERE " + NotesDbAdapter.KEY_ROWID
+                + " = ?");
+        mDeleteNote = db.compileStatement("DELETE FROM " + NotesDbAdapter.DATABASE_TABLE
+                + " WHERE " + NotesDbAdapter.KEY_ROWID + " = ?");
+        mCategoryOf = db.compileStatement("SELECT " + NotesDbAdapter.KEY_CATID + " FROM "
+                + NotesDbAdapter.DATABASE_TABLE + " WHERE " + NotesDbAdapter.KEY_ROWID + " = ?");
+        mBodyFileOf = db.compileStatement("SELECT " + NotesDbAdapter.KEY_BODY_FILE + " FROM "
+                + NotesDbAdapter.DATABASE_TABLE + " WHERE " + NotesDbAdapter.KEY_ROWID + " = ?");
+        mSetBodyFile = db.compileStatement("UPDATE " + NotesDbAdapter.DATABASE_TABLE + " SET "
+                + NotesDbAdapter.KEY_STORAGE + " = ?, " + NotesDbAdapter.KEY_BODY_FILE + " = ?, "
+                + NotesDbAdapter.KEY_BODY_HASH + " = ? WHERE " + NotesDbAdapter.KEY_ROWID
+                + " = ?");
+        mInsertCategory = db.compileStatement("INSERT INTO categories ("
+                + NotesDbAdapter.KEY_TITLE + ") VALUES (?)");
+        mDeleteIndex = db.compileStatement("DELETE FROM " + NotesDbAdapter.FTS_TABLE
+                + " WHERE docid = ?");
+        mInsertIndex = db.compileStatement("INSERT INTO " + NotesDbAdapter.FTS_TABLE
+                + " (docid, " + NotesDbAdapter.KEY_TITLE + ", " + NotesDbAdapter.KEY_BODY
+                + ") VALUES (?, ?, ?)");
+        mIsIndexed = db.compileStatement("SELECT count(*) FROM " + NotesDbAdapter.FTS_TABLE
+                + " WHERE docid = ? AND " + NotesDbAdapter.KEY_TITLE + " IS ? AND "
+                + NotesDbAdapter.KEY_BODY + " IS ?");
+    }
+
+    /**
+     * @param body the body as kept in gen, which depends on the storage
+     * @param storage one of the NotesDbAdapter.STORAGE_ constants
+     * @param packed the packed body, or null unless it is stored packed
+     * @return the rowId of the new note, or -1 if it couldn't be inserted
+     */
+    long insertNote(String title, String body, int catId, long created, String preview,
+                    int storage, byte[] packed) {
+        bind(mInsertNote, 1, title);
+        bind(mInsertNote, 2, body);
+        mInsertNote.bindLong(3, catId);
+        mInsertNote.bindLong(4, created);
+        mInsertNote.bindLong(5, created);
+        bind(mInsertNote, 6, preview);
+        mInsertNote.bindLong(7, storage);
+        bind(mInsertNote, 8, packed);
+        try {
+            return mInsertNote.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param body the body as kept in gen, which depends on the storage
+     * @param storage one of the NotesDbAdapter.STORAGE_ constants
+     * @param packed the packed body, or null unless it is stored packed
+     * @return true if the note was found and updated
+     */
+    boolean updateNote(long rowId, String title, String body, int catId, long modified,
+                       String preview, int storage, byte[] packed) {
+        bind(mUpdateNote, 1, title);
+        bind(mUpdateNote, 2, body);
+        mUpdateNote.bindLong(3, catId);
+        mUpdateNote.bindLong(4, modified);
+        bind(mUpdateNote, 5, preview);
+        mUpdateNote.bindLong(6, storage);
+        bind(mUpdateNote, 7, packed);
+        mUpdateNote.bindLong(8, rowId);
+        return mUpdateNote.executeUpdateDelete() > 0;
+    }
+
+    /**
+     * @return true if the note was found and deleted
+     */
+    boolean deleteNote(long rowId) {
+        mDeleteNote.bindLong(1, rowId);
+        return mDeleteNote.executeUpdateDelete() > 0;
+    }
+
+    /**
+     * @return the cat_id of a note, or -1 if there is no such note
+     */
+    int categoryOf(long rowId) {
+        mCategoryOf.bindLong(1, rowId);
+        try {
+            return (int) mCategoryOf.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the name of the file a note's body is kept in, or null if it
+     * isn't kept in a file or there is no such note
+     */
+    String bodyFileOf(long rowId) {
+        mBodyFileOf.bindLong(1, rowId);
+        try {
+            return mBodyFileOf.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the storage of a note along with the file its body is kept in,
+     * both of which are null unless it is kept in a file.
+     */
+    void setBodyFile(long rowId, int storage, String name, String hash) {
+        mSetBodyFile.bindLong(1, storage);
+        bind(mSetBodyFile, 2, name);
+        bind(mSetBodyFile, 3, hash);
+        mSetBodyFile.bindLong(4, rowId);
+        mSetBodyFile.executeUpdateDelete();
+    }
+
+    /**
+     * @return the rowId of the new category, or -1 if it couldn't be inserted
+     */
+    long insertCategory(String title) {
+        bind(mInsertCategory, 1, title);
+        try {
+            return mInsertCategory.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Replace the search index entry of a note.
+     */
+    void indexNote(long rowId, String title, String text) {
+        mDeleteIndex.bindLong(1, rowId);
+        mDeleteIndex.executeUpdateDelete();
+
+        mInsertIndex.bindLong(1, rowId);
+        bind(mInsertIndex, 2, title);
+        bind(mInsertIndex, 3, text);
+        mInsertIndex.executeInsert();
+    }
+
+    /**
+     * @return true if the search index already holds this title and text
+     * for the note, so it needn't be indexed again
+     */
+    boolean isIndexed(long rowId, String title, String text) {
+        mIsIndexed.bindLong(1, rowId);
+        bind(mIsIndexed, 2, title);
+        bind(mIsIndexed, 3, text);
+        return mIsIndexed.simpleQueryForLong() > 0;
+    }
+
+    void close() {
+        mInsertNote.close();
+        mUpdateNote.close();
+        mDeleteNote.close();
+        mCategoryOf.close();
+        mBodyFileOf.close();
+        mSetBodyFile.close();
+        mInsertCategory.close();
+        mDeleteIndex.close();
+        mInsertIndex.close();
+        mIsIndexed.close();
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
+}
@@ -1,21 +1,37 @@
 package net.rymate.notes.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.text.Html;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseIntArray;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import androidx.core.os.CancellationSignal;
 
-import java.lang.reflect.Type;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,25 +51,217 @@ public class NotesDbAdapter {
     public static final String KEY_BODY = "body";
     public static final String KEY_ROWID = "_id";
     public static final String KEY_CATID = "cat_id";
+    public static final String KEY_CREATED = "created";
+    public static final String KEY_MODIFIED = "modified";
+    public static final String KEY_PREVIEW = "preview";
+
+    /**
+     * The number of notes in a category, in {@link #fetchCategoriesWithCounts()}
+     */
+    public static final String KEY_NOTE_COUNT = "note_count";
+
+    /**
+     * Where the body of a note is kept, one of the STORAGE_ constants
+     */
+    static final String KEY_STORAGE = "storage";
+
+    /**
+     * The body is in the body column of gen
+     */
+    static final int STORAGE_INLINE = 0;
+
+    /**
+     * The body is split into blocks in note_blocks, and the body column of
+     * gen is empty. See {@link NoteBlocks}.
+     */
+    static final int STORAGE_BLOCKS = 1;
+
+    /**
+     * The body is packed by {@link CompressedBody} into the packed_body
+     * column, and the body column of gen is empty
+     */
+    static final int STORAGE_PACKED = 2;
+
+    /**
+     * The column packed bodies are kept in. Only a single note is ever read
+     * from it; the list queries never select it.
+     */
+    static final String KEY_PACKED_BODY = "packed_body";
+
+    /**
+     * The body is in a file of its own, named by the body_file column and
+     * checked against the body_hash column, and the body column of gen is
+     * empty. See {@link BodyFiles}.
+     */
+    static final int STORAGE_FILE = 3;
+
+    static final String KEY_BODY_FILE = "body_file";
+    static final String KEY_BODY_HASH = "body_hash";
+
+    /**
+     * The columns {@link #loadBody(long, Cursor, int)} reads a body from, in
+     * this order
+     */
+    private static final String STORED_BODY_COLUMNS = KEY_BODY + ", " + KEY_STORAGE + ", "
+            + KEY_PACKED_BODY + ", " + KEY_BODY_FILE + ", " + KEY_BODY_HASH;
+
+    /**
+     * Bodies at least this long are stored as blocks
+     */
+    static final int BLOCK_THRESHOLD = 64 * 1024;
+
+    /**
+     * Bodies at least this long are stored in files. Past this many blocks a
+     * single file costs less to write than the rows, and is read without
+     * going through a CursorWindow at all.
+     */
+    static final int FILE_THRESHOLD = 2 * 1024 * 1024;
+
+    /**
+     * Bodies at least this long, but too short to be stored as blocks, are
+     * packed unless the threshold is changed
+     */
+    public static final int DEFAULT_PACK_THRESHOLD = 4 * 1024;
+
+    private static volatile int sPackThreshold = DEFAULT_PACK_THRESHOLD;
+
+    /**
+     * The most characters of plain text kept in the preview column, which is
+     * more than a row in the list can show
+     */
+    static final int PREVIEW_LENGTH = 200;
+
+    /**
+     * The orders the list of notes can be sorted in
+     */
+    public static final int SORT_TITLE = 0;
+    public static final int SORT_CREATED = 1;
+    public static final int SORT_MODIFIED = 2;
 
     private static final String TAG = "NotesDbAdapter";
+
+    /**
+     * The helper is shared by every adapter in the process, so the database
+     * is only opened once. It stays open for as long as at least one adapter
+     * has it open.
+     */
+    private static final Object sLock = new Object();
     private static DatabaseHelper mDbHelper;
+    private static NoteStatements sStatements;
+    private static RevisionStore sRevisions;
+    private static NoteBlocks sBlocks;
+    private static int sOpenCount;
+
+    /**
+     * The number of notes with each cat_id, loaded with one grouped query the
+     * first time a count is asked for and then kept current by the adapter's
+     * own writes. Null until loaded. The generation changes on every write,
+     * so a load that raced with a write is thrown away instead of cached.
+     */
+    private static final Object sCountLock = new Object();
+    private static SparseIntArray sCategoryCounts;
+    private static int sNoteCount;
+    private static int sCountGeneration;
+
+    /**
+     * The _id and title of every category in drawer order, loaded the first
+     * time they are asked for and dropped when a category is added. Guarded
+     * by sCountLock along with the counts, with a generation of their own.
+     */
+    private static long[] sCategoryIds;
+    private static String[] sCategoryTitles;
+    private static int sCategoryGeneration;
+
+    /**
+     * Recent search results, dropped on every write through this adapter.
+     */
+    private static final SearchCache sSearchCache = new SearchCache();
+
+    /**
+     * Recently viewed notes with their bodies already rendered, bounded by
+     * the characters they hold. A write to a note drops it, and bumps the
+     * generation so a render that raced with the write isn't cached.
+     */
+    private static final int RENDERED_CACHE_SIZE = 1024 * 1024;
+    private static final LruCache<Long, RenderedNote> sRenderedNotes =
+            new LruCache<Long, RenderedNote>(RENDERED_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(Long rowId, RenderedNote note) {
+                    return note.size();
+                }
+            };
+    private static int sRenderedGeneration;
+
     private SQLiteDatabase mDb;
+    private NoteStatements mStatements;
+    private RevisionStore mRevisions;
+    private NoteBlocks mBlocks;
+    private BodyFiles mFiles;
 
     /**
      * Database creation sql statement
      */
-    private static final String DATABASE_CREATE =
+    static final String DATABASE_CREATE =
         "create table gen (_id integer primary key autoincrement, "
-        + "title text not null, body text not null, cat_id integer);";
+        + "title text not null, body text not null, cat_id integer, "
+        + "created integer not null default 0, modified integer not null default 0, "
+        + "preview text, storage integer not null default 0, packed_body blob, "
+        + "body_file text, body_hash text);";
+
+    /**
+     * Indexes for each order the list can be sorted in, both across all notes
+     * and within a category, so none of the list queries needs a sort step.
+     * The rowid in each index breaks ties between equal keys.
+     */
+    private static final String[] DATABASE_INDEXES_CREATE = {
+            "create index gen_title on gen (title collate nocase);",
+            "create index gen_created on gen (created);",
+            "create index gen_modified on gen (modified);",
+            "create index gen_cat_title on gen (cat_id, title collate nocase);",
+            "create index gen_cat_created on gen (cat_id, created);",
+            "create index gen_cat_modified on gen (cat_id, modified);"
+    };
 
-    private static final String DATABASE_CATEGORIES_CREATE =
+    static final String DATABASE_CATEGORIES_CREATE =
             "create table categories (_id integer primary key autoincrement, "
                     + "title text not null);";
 
+    /**
+     * Full text index over the note titles and the plain text of the bodies.
+     * The docid of each row is the _id of the note in the gen table.
+     */
+    static final String DATABASE_FTS_CREATE =
+            "create virtual table notes_fts using fts4(title, body);";
+
+    /**
+     * Removes a note from the search index when it is deleted. Inserts and
+     * updates are indexed by the adapter, as the body has to be stripped of
+     * its markup before it goes into the index.
+     */
+    static final String DATABASE_FTS_DELETE_TRIGGER =
+            "create trigger gen_fts_delete after delete on gen begin "
+                    + "delete from notes_fts where docid = old._id; end;";
+
     private static final String DATABASE_NAME = "data";
-    private static final String DATABASE_TABLE = "gen";
-    private static final int DATABASE_VERSION = 5;
+    static final String DATABASE_TABLE = "gen";
+    static final String FTS_TABLE = "notes_fts";
+    private static final int DATABASE_VERSION = 12;
+
+    /**
+     * How many notes a bulk import inserts per transaction
+     */
+    private static final int IMPORT_BATCH_SIZE = 500;
+
+    /**
+     * A bulk import ends a batch early once its bodies add up to this many
+     * characters, as the whole batch is held in memory
+     */
+    private static final int IMPORT_BATCH_CHARS = 8 * 1024 * 1024;
+
+    /**
+     * How many compiled statements each connection keeps
+     */
+    private static final int SQL_CACHE_SIZE = 50;
 
     private final Context mCtx;
 
@@ -69,12 +277,36 @@ public class NotesDbAdapter {
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             this.context = context;
+
+            // write-ahead logging lets the list and search read while a save
+            // or a restore is writing on another thread
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+            // room for every shape of NoteQuery the app runs, so none of them
+            // has to be compiled again
+            db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE);
             db.execSQL(DATABASE_CATEGORIES_CREATE);
+            db.execSQL(DATABASE_FTS_CREATE);
+            db.execSQL(DATABASE_FTS_DELETE_TRIGGER);
+            for (String index : DATABASE_INDEXES_CREATE) {
+                db.execSQL(index);
+            }
+            createRevisions(db);
+            createBlocks(db);
             addCategory("All Notes", db);
             addCategory("Uncategorised", db);
 
@@ -105,8 +337,17 @@ public class NotesDbAdapter {
             initialValues.put(KEY_TITLE, title);
             initialValues.put(KEY_BODY, body);
             initialValues.put(KEY_CATID, 0);
+            long now = System.currentTimeMillis();
+            initialValues.put(KEY_CREATED, now);
+            initialValues.put(KEY_MODIFIED, now);
+            String text = HtmlStripper.strip(body);
+            initialValues.put(KEY_PREVIEW, makePreview(text));
 
-            return db.insert(DATABASE_TABLE, null, initialValues);
+            long id = db.insert(DATABASE_TABLE, null, initialValues);
+            if (id > 0) {
+                indexNote(db, id, title, text);
+            }
+            return id;
         }
 
         @Override
@@ -115,7 +356,117 @@ public class NotesDbAdapter {
             //db.execSQL(DATABASE_CATEGORIES_CREATE);
             //addCategory("All Notes", db);
             //addCategory("Uncategorised", db);
-            db.execSQL("alter table categories add column color text");
+            if (oldVersion < 5) {
+                db.execSQL("alter table categories add column color text");
+            }
+            if (oldVersion < 6) {
+                db.execSQL(DATABASE_FTS_CREATE);
+                db.execSQL(DATABASE_FTS_DELETE_TRIGGER);
+                backfillSearchIndex(db);
+            }
+            if (oldVersion < 7) {
+                // existing notes have no history, so they all start out as
+                // created and modified now
+                long now = System.currentTimeMillis();
+                db.execSQL("alter table gen add column created integer not null default " + now);
+                db.execSQL("alter table gen add column modified integer not null default " + now);
+                for (String index : DATABASE_INDEXES_CREATE) {
+                    db.execSQL(index);
+                }
+            }
+            if (oldVersion < 8) {
+                db.execSQL("alter table gen add column preview text");
+                backfillPreviews(db);
+            }
+            if (oldVersion < 9) {
+                // a note's history starts the first time it is changed
+                createRevisions(db);
+            }
+            if (oldVersion < 10) {
+                // every existing note stays in gen until it is next saved
+                db.execSQL("alter table gen add column storage integer not null default 0");
+                createBlocks(db);
+            }
+            if (oldVersion < 11) {
+                db.execSQL("alter table gen add column packed_body blob");
+                packBodies(db);
+            }
+            if (oldVersion < 12) {
+                db.execSQL("alter table gen add column body_file text");
+                db.execSQL("alter table gen add column body_hash text");
+            }
+        }
+
+        /**
+         * Pack the body of every existing note long enough to be packed,
+         * used when upgrading a database that was created before bodies
+         * could be packed.
+         */
+        private void packBodies(SQLiteDatabase db) {
+            Cursor cursor = db.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_BODY + " FROM "
+                    + DATABASE_TABLE + " WHERE " + KEY_STORAGE + " = " + STORAGE_INLINE
+                    + " AND length(" + KEY_BODY + ") >= " + sPackThreshold, null);
+            SQLiteStatement pack = db.compileStatement("UPDATE " + DATABASE_TABLE + " SET "
+                    + KEY_BODY + " = '', " + KEY_STORAGE + " = " + STORAGE_PACKED + ", "
+                    + KEY_PACKED_BODY + " = ? WHERE " + KEY_ROWID + " = ?");
+            try {
+                while (cursor.moveToNext()) {
+                    pack.bindBlob(1, CompressedBody.pack(cursor.getString(1)));
+                    pack.bindLong(2, cursor.getLong(0));
+                    pack.executeUpdateDelete();
+                }
+            } finally {
+                cursor.close();
+                pack.close();
+            }
+        }
+
+        private void createRevisions(SQLiteDatabase db) {
+            db.execSQL(RevisionStore.TABLE_CREATE);
+            db.execSQL(RevisionStore.INDEX_CREATE);
+            db.execSQL(RevisionStore.DELETE_TRIGGER);
+        }
+
+        private void createBlocks(SQLiteDatabase db) {
+            db.execSQL(NoteBlocks.TABLE_CREATE);
+            db.execSQL(NoteBlocks.INDEX_CREATE);
+            db.execSQL(NoteBlocks.DELETE_TRIGGER);
+        }
+
+        /**
+         * Index every existing note, used when upgrading a database that was
+         * created before the search index existed.
+         */
+        private void backfillSearchIndex(SQLiteDatabase db) {
+            Cursor cursor = db.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE, KEY_BODY},
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    indexNote(db, cursor.getLong(0), cursor.getString(1),
+                            HtmlStripper.strip(cursor.getString(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Fill in the preview of every existing note, used when upgrading a
+         * database that was created before notes had previews.
+         */
+        private void backfillPreviews(SQLiteDatabase db) {
+            Cursor cursor = db.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_BODY},
+                    null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    values.put(KEY_PREVIEW, makePreview(
+                            HtmlStripper.strip(cursor.getString(1), PREVIEW_LENGTH * 3)));
+                    db.update(DATABASE_TABLE, values, KEY_ROWID + "=" + cursor.getLong(0), null);
+                }
+            } finally {
+                cursor.close();
+            }
         }
 
         public long addCategory(String title, SQLiteDatabase db) {
@@ -140,19 +491,61 @@ public class NotesDbAdapter {
      * Open the gen database. If it cannot be opened, try to create a new
      * instance of the database. If it cannot be created, throw an exception to
      * signal the failure
+     *
+     * The database is shared with every other open adapter in the process, so
+     * this only opens it if no other adapter currently has it open. Every call
+     * to open() must be matched by a call to {@link #close()}.
      * 
      * @return this (self reference, allowing this to be chained in an
      *         initialization call)
      * @throws SQLException if the database could be neither opened or created
      */
     public NotesDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
+        synchronized (sLock) {
+            if (mDb != null) {
+                return this;
+            }
+            if (mDbHelper == null) {
+                mDbHelper = new DatabaseHelper(mCtx.getApplicationContext());
+            }
+            mDb = mDbHelper.getWritableDatabase();
+            if (sStatements == null) {
+                sStatements = new NoteStatements(mDb);
+                sRevisions = new RevisionStore(mDb);
+                sBlocks = new NoteBlocks(mDb);
+            }
+            mStatements = sStatements;
+            mRevisions = sRevisions;
+            mBlocks = sBlocks;
+            mFiles = new BodyFiles(mCtx.getApplicationContext());
+            sOpenCount++;
+        }
         return this;
     }
 
+    /**
+     * Release this adapter's hold on the database. The database is closed
+     * once the last adapter that opened it has been closed.
+     */
     public void close() {
-        mDbHelper.close();
+        synchronized (sLock) {
+            if (mDb == null) {
+                return;
+            }
+            mDb = null;
+            mStatements = null;
+            mRevisions = null;
+            mBlocks = null;
+            if (--sOpenCount == 0) {
+                sStatements.close();
+                sStatements = null;
+                sRevisions.close();
+                sRevisions = null;
+                sBlocks.close();
+                sBlocks = null;
+                mDbHelper.close();
+            }
+        }
     }
 
 
@@ -166,21 +559,38 @@ public class NotesDbAdapter {
      * @return rowId or -1 if failed
      */
     public long createNote(String title, String body) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TITLE, title);
-        initialValues.put(KEY_BODY, body);
-        initialValues.put(KEY_CATID, 0);
-
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        return createNote(title, body, 0);
     }
 
     public long createNote(String title, String body, int catId) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TITLE, title);
-        initialValues.put(KEY_BODY, body);
-        initialValues.put(KEY_CATID, catId);
+        long now = System.currentTimeMillis();
+        body = HtmlNormalizer.normalize(body);
+        String text = HtmlStripper.strip(body);
+        String preview = makePreview(text);
+        int storage = storageFor(body);
+        byte[] packed = storage == STORAGE_PACKED ? CompressedBody.pack(body) : null;
+
+        long id;
+        synchronized (mStatements) {
+            mDb.beginTransactionNonExclusive();
+            try {
+                id = mStatements.insertNote(title, storage == STORAGE_INLINE ? body : "", catId,
+                        now, preview, storage, packed);
+                if (id > 0) {
+                    storeBody(id, body, storage, STORAGE_INLINE);
+                    mStatements.indexNote(id, title, text);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
 
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        if (id > 0) {
+            adjustCount(catId, 1);
+            sSearchCache.invalidate();
+        }
+        return id;
     }
 
     /**
@@ -190,10 +600,17 @@ public class NotesDbAdapter {
      * @return rowId or -1 if failed
      */
     public long addCategory(String title) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TITLE, title);
+        long id;
+        synchronized (mStatements) {
+            id = mStatements.insertCategory(title);
+        }
 
-        return mDb.insert("categories", null, initialValues);
+        synchronized (sCountLock) {
+            sCategoryGeneration++;
+            sCategoryIds = null;
+            sCategoryTitles = null;
+        }
+        return id;
     }
 
 
@@ -204,8 +621,142 @@ public class NotesDbAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean deleteNote(long rowId) {
+        int catId;
+        String file;
+        boolean deleted;
+        synchronized (mStatements) {
+            mDb.beginTransactionNonExclusive();
+            try {
+                catId = mStatements.categoryOf(rowId);
+                file = mStatements.bodyFileOf(rowId);
+                deleted = mStatements.deleteNote(rowId);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+
+        if (deleted) {
+            mFiles.delete(file);
+            adjustCount(catId, -1);
+            sSearchCache.invalidate();
+            forgetRenderedNote(rowId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Return the number of notes in the database. This is answered from a
+     * cached count after the first call, so it is cheap to call often.
+     *
+     * @return the number of notes
+     */
+    public int getNoteCount() {
+        synchronized (sCountLock) {
+            if (sCategoryCounts != null) {
+                return sNoteCount;
+            }
+        }
+
+        SparseIntArray counts = loadCounts();
+        int total = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            total += counts.valueAt(i);
+        }
+        return total;
+    }
+
+    /**
+     * Return the number of notes with the given category id. Like
+     * {@link #getNoteCount()} this is answered from a cached count.
+     *
+     * @param catId id of the category
+     * @return the number of notes in that category
+     */
+    public int getNoteCount(int catId) {
+        synchronized (sCountLock) {
+            if (sCategoryCounts != null) {
+                return sCategoryCounts.get(catId);
+            }
+        }
+        return loadCounts().get(catId);
+    }
+
+    /**
+     * @return true if there are no notes in the database
+     */
+    public boolean isEmpty() {
+        return getNoteCount() == 0;
+    }
+
+    /**
+     * Like {@link #isEmpty()}, but only answered from the cached count, so
+     * it never queries and is safe to call on the UI thread.
+     *
+     * @return true if the notes have been counted and there are none
+     */
+    public boolean isKnownEmpty() {
+        synchronized (sCountLock) {
+            return sCategoryCounts != null && sNoteCount == 0;
+        }
+    }
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+    /**
+     * Count the notes in every category with a single grouped query, which
+     * the cat_id indexes can answer without reading any notes. The result is
+     * cached unless a write happened while the query was running.
+     */
+    private SparseIntArray loadCounts() {
+        int generation;
+        synchronized (sCountLock) {
+            generation = sCountGeneration;
+        }
+
+        SparseIntArray counts = new SparseIntArray();
+        int total = 0;
+        Cursor cursor = mDb.rawQuery("SELECT " + KEY_CATID + ", COUNT(*) FROM " + DATABASE_TABLE
+                + " GROUP BY " + KEY_CATID, null);
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getInt(0), cursor.getInt(1));
+                total += cursor.getInt(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (sCountLock) {
+            if (generation == sCountGeneration) {
+                sCategoryCounts = counts.clone();
+                sNoteCount = total;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Keep the cached counts in step with a note being added to or removed
+     * from a category.
+     */
+    private static void adjustCount(int catId, int delta) {
+        synchronized (sCountLock) {
+            sCountGeneration++;
+            if (sCategoryCounts != null) {
+                sCategoryCounts.put(catId, sCategoryCounts.get(catId) + delta);
+                sNoteCount += delta;
+            }
+        }
+    }
+
+    /**
+     * Forget the cached counts after a write that changes many notes at once,
+     * so they are counted again the next time they are needed.
+     */
+    static void invalidateCounts() {
+        synchronized (sCountLock) {
+            sCountGeneration++;
+            sCategoryCounts = null;
+        }
     }
 
     /**
@@ -214,9 +765,17 @@ public class NotesDbAdapter {
      * @return Cursor over all notes
      * */
     public Cursor fetchAllNotes() {
-        String orderBy =  NotesDbAdapter.KEY_TITLE + " ASC";
-        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE,
-                KEY_BODY}, null, null, null, null, orderBy);
+        return fetchAllNotes(SORT_TITLE);
+    }
+
+    /**
+     * Return a Cursor over the list of all notes in the database
+     *
+     * @param sort one of the SORT_ constants
+     * @return Cursor over all notes
+     * */
+    public Cursor fetchAllNotes(int sort) {
+        return query(new NoteQuery().sortBy(sort));
     }
 
     /**
@@ -226,118 +785,1290 @@ public class NotesDbAdapter {
      * @return Cursor over all notes in that category
      * */
     public Cursor fetchNotes(int catId) {
-        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE,
-                KEY_BODY}, KEY_CATID + " = " + catId, null, null, null, null);
+        return fetchNotes(catId, SORT_TITLE);
     }
 
-    public Cursor searchNotes(String s) {
-        Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_TITLE,
-                KEY_BODY}, KEY_BODY + " LIKE '%" + s + "%'", null, null, null, null);
-        return cursor;
+    /**
+     * Return a Cursor over the list of all notes in a category
+     *
+     * @param catId id of the category
+     * @param sort one of the SORT_ constants
+     * @return Cursor over all notes in that category
+     * */
+    public Cursor fetchNotes(int catId, int sort) {
+        return query(new NoteQuery().inCategories(catId).sortBy(sort));
     }
 
-
     /**
-     * Return a Cursor positioned at the note that matches the given rowId
-     *
+     * Run a query over the notes.
      *
-     * @param rowId id of note to retrieve
-     * @return Cursor positioned to matching note, if found
-     * @throws SQLException if note could not be found/retrieved
+     * @return Cursor over the notes the query matches
      */
-    public Cursor fetchNote(long rowId) throws SQLException {
-        Cursor mCursor =
-
-            mDb.query(true, DATABASE_TABLE, new String[] {KEY_ROWID,
-                    KEY_TITLE, KEY_BODY, KEY_CATID}, KEY_ROWID + "=" + rowId, null,
-                    null, null, null, null);
-
-        return mCursor;
-
+    public Cursor query(NoteQuery query) {
+        return query(query, null);
     }
 
     /**
-     * Return a Cursor over the list of all categories in the database
+     * Run a query over the notes, which can be abandoned through the signal.
+     * On Jelly Bean and later a query that is already running is stopped too.
      *
-     * @return Cursor over all notes
-     * */
-    public Cursor fetchCategories() {
-
-        return mDb.query("categories", new String[] {KEY_ROWID, KEY_TITLE}
-                , null, null, null, null, null);
+     * @param signal cancels the query, or null
+     * @return Cursor over the notes the query matches
+     */
+    public Cursor query(NoteQuery query, CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return rawQueryCancellable(query.getSql(), query.getArgs(), signal);
+            }
+        }
+        return mDb.rawQuery(query.getSql(), query.getArgs());
+    }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Cursor rawQueryCancellable(String sql, String[] args, CancellationSignal signal) {
+        return mDb.rawQuery(sql, args,
+                (android.os.CancellationSignal) signal.getCancellationSignalObject());
     }
 
     /**
-     * Return a Cursor over the list of nearly all categories in the database
+     * Return a Cursor over the notes in some categories that loads the notes
+     * a page at a time as it is moved, rather than all at once. Opening it
+     * costs the same however many notes there are.
      *
-     * @return Cursor over all notes
-     * */
-    public Cursor fetchNearlyAllCategories() {
-
-        return mDb.query("categories", new String[] {KEY_ROWID, KEY_TITLE}
-                , KEY_ROWID + " NOT LIKE '%" + 1 + "%'", null, null, null, null);
+     * The first page is loaded straight away, so call this off the UI
+     * thread. If it shows the cached count to be wrong, the notes are
+     * counted again.
+     *
+     * @param catIds the category ids to include, or null for all notes
+     * @param sort one of the SORT_ constants
+     * @return Cursor over the notes in those categories
+     */
+    public Cursor fetchNotesPaged(int[] catIds, int sort) {
+        return fetchNotesPaged(catIds, sort, null);
+    }
 
+    /**
+     * Like {@link #fetchNotesPaged(int[], int)}, but the cursor loads the
+     * pages next to the one being read ahead of time on the given executor,
+     * so a list scrolling through it doesn't query on the UI thread.
+     *
+     * @param prefetcher runs the loads ahead, or null
+     */
+    public Cursor fetchNotesPaged(int[] catIds, int sort, Executor prefetcher) {
+        NoteQuery query = new NoteQuery().inCategories(catIds).sortBy(sort);
+        PagedNotesCursor cursor = new PagedNotesCursor(mDb, query, countNotes(catIds),
+                prefetcher);
+        if (!cursor.checkFirstPage()) {
+            cursor.close();
+            cursor = new PagedNotesCursor(mDb, query, countNotes(catIds), prefetcher);
+        }
+        return cursor;
     }
 
     /**
-     * Update the note using the details provided. The note to be updated is
-     * specified using the rowId, and it is altered to use the title and body
-     * values passed in
-     * 
-     * @param rowId id of note to update
-     * @param title value to set note title to
-     * @param body value to set note body to
-     * @param category value of the new category
-     * @return true if the note was successfully updated, false otherwise
+     * @return the cached number of notes in some categories, or all notes
+     * for null
      */
-    public boolean updateNote(long rowId, String title, String body, int category) {
-        ContentValues args = new ContentValues();
-        args.put(KEY_TITLE, title);
-        args.put(KEY_BODY, body);
-        args.put(KEY_CATID, category);
+    private int countNotes(int[] catIds) {
+        if (catIds == null) {
+            return getNoteCount();
+        }
 
-        return mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        int count = 0;
+        for (int catId : catIds) {
+            count += getNoteCount(catId);
+        }
+        return count;
     }
 
     /**
-     * Compose JSON out of SQLite records
-     * @return
+     * The column a sort mode orders the notes by
      */
-    public String createJsonFromNotes(){
-        List<Note> noteList = new ArrayList<>();
-        String orderBy =  NotesDbAdapter.KEY_TITLE + " ASC";
-        Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_CATID, KEY_TITLE,
-                KEY_BODY}, null, null, null, null, orderBy);
-        if (cursor.moveToFirst()) {
-            do {
-                Note note = new Note();
-                note.setId(cursor.getInt(cursor.getColumnIndex(NotesDbAdapter.KEY_ROWID)));
-                note.setCatId(0);
-                note.setTitle(cursor.getString(cursor.getColumnIndex(NotesDbAdapter.KEY_TITLE)));
-                note.setText(cursor.getString(cursor.getColumnIndex(NotesDbAdapter.KEY_BODY)));
-                noteList.add(note);
-            } while (cursor.moveToNext());
+    static String sortKey(int sort) {
+        switch (sort) {
+            case SORT_CREATED:
+                return KEY_CREATED;
+            case SORT_MODIFIED:
+                return KEY_MODIFIED;
+            default:
+                return KEY_TITLE;
         }
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        //Use GSON to serialize Array List to JSON
-        System.out.println(gson.toJson(noteList));
+    }
 
-        return gson.toJson(noteList);
+    /**
+     * A WHERE clause matching the notes that come after a given note in a
+     * sort mode. Its arguments are the sort key of that note twice, then its
+     * _id.
+     */
+    static String keysetSelection(int sort) {
+        switch (sort) {
+            case SORT_CREATED:
+            case SORT_MODIFIED:
+                String key = sortKey(sort);
+                return "(" + key + " < ? OR (" + key + " = ? AND " + KEY_ROWID + " < ?))";
+            default:
+                return "(" + KEY_TITLE + " COLLATE NOCASE > ? OR (" + KEY_TITLE
+                        + " COLLATE NOCASE = ? AND " + KEY_ROWID + " > ?))";
+        }
     }
 
     /**
-     * Compose SQLite records out of JSON
-     * @return
+     * The ORDER BY clause for a sort mode. Each of these matches one of the
+     * indexes on gen, so SQLite can walk the index instead of sorting.
      */
-    public void createNotesFromJson(String json) {
-        System.out.println(json);
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        List<Note> noteList = gson.fromJson(json, new TypeToken<List<Note>>(){}.getType());
+    static String orderBy(int sort) {
+        switch (sort) {
+            case SORT_CREATED:
+                return KEY_CREATED + " DESC, " + KEY_ROWID + " DESC";
+            case SORT_MODIFIED:
+                return KEY_MODIFIED + " DESC, " + KEY_ROWID + " DESC";
+            default:
+                return KEY_TITLE + " COLLATE NOCASE ASC, " + KEY_ROWID + " ASC";
+        }
+    }
 
-        for (Note note : noteList) {
-            createNote(note.getTitle(), note.getText(), note.getCatId());
+    /**
+     * Return a Cursor over the notes whose title or text contains every word
+     * of the query. The last word is matched as a prefix, so results update
+     * as the user types.
+     *
+     * @param s the search query as typed by the user
+     * @return Cursor over the matching notes
+     */
+    public Cursor searchNotes(String s) {
+        return searchNotes(s, null);
+    }
+
+    /**
+     * Like {@link #searchNotes(String)}, but the search can be abandoned
+     * through the signal. The query only runs once the cursor is first read,
+     * so read it on the same background thread. On Jelly Bean and later a
+     * query that is already running is stopped as well.
+     *
+     * A query that only adds to a recent one, as happens while the user types,
+     * is answered by filtering the recent results instead of the whole table.
+     *
+     * @param s the search query as typed by the user
+     * @param signal cancels the search, or null
+     * @return Cursor over the matching notes
+     */
+    public Cursor searchNotes(String s, CancellationSignal signal) {
+        String match = toMatchQuery(s);
+        if (match == null) {
+            return new MatrixCursor(SearchCache.COLUMNS, 0);
+        }
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        Cursor cached = sSearchCache.search(match, signal, mSearchTextReader);
+        if (cached != null) {
+            return cached;
+        }
+
+        long sequence = sSearchCache.getSequence();
+        Cursor cursor = query(new NoteQuery().columns(SearchCache.COLUMNS).matching(s), signal);
+        int count = cursor.getCount();
+        if (count > SearchCache.MAX_ROWS) {
+            return cursor;
+        }
+
+        long[] ids = new long[count];
+        String[] titles = new String[count];
+        String[] previews = new String[count];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                titles[i] = cursor.getString(1);
+                previews[i] = cursor.getString(2);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        SearchCache.Entry entry = new SearchCache.Entry(match, sequence, ids, titles, previews);
+        sSearchCache.put(entry);
+        return entry.toCursor();
+    }
+
+    /**
+     * Reads the indexed title and text of each note of a search result, so
+     * that the search can be refined in memory. The notes are looked up by
+     * docid, rather than searched for again.
+     */
+    private final SearchCache.TextReader mSearchTextReader = new SearchCache.TextReader() {
+        @Override
+        public String[] read(long[] ids, CancellationSignal signal) {
+            if (ids.length == 0) {
+                return new String[0];
+            }
+
+            StringBuilder sql = new StringBuilder("SELECT docid, " + KEY_TITLE + ", " + KEY_BODY
+                    + " FROM " + FTS_TABLE + " WHERE docid IN (");
+            for (int i = 0; i < ids.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(ids[i]);
+            }
+            sql.append(')');
+
+            HashMap<Long, String> text = new HashMap<Long, String>(ids.length * 2);
+            Cursor cursor = signal != null
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? rawQueryCancellable(sql.toString(), null, signal)
+                    : mDb.rawQuery(sql.toString(), null);
+            try {
+                int length = 0;
+                while (cursor.moveToNext()) {
+                    String note = cursor.getString(1) + "\n" + cursor.getString(2);
+                    length += note.length();
+                    if (length > SearchCache.MAX_TEXT) {
+                        return null;
+                    }
+                    text.put(cursor.getLong(0), note);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            String[] texts = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                texts[i] = text.get(ids[i]);
+                if (texts[i] == null) {
+                    // deleted since the search
+                    return null;
+                }
+            }
+            return texts;
+        }
+    };
+
+    /**
+     * Return a Cursor positioned at the note that matches the given rowId
+     *
+     *
+     * @param rowId id of note to retrieve
+     * @return Cursor positioned to matching note, if found
+     * @throws SQLException if note could not be found/retrieved
+     */
+    public Cursor fetchNote(long rowId) throws SQLException {
+        Cursor mCursor =
+
+            mDb.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_TITLE + ", " + KEY_CATID + ", "
+                    + STORED_BODY_COLUMNS + " FROM " + DATABASE_TABLE + " WHERE "
+                    + KEY_ROWID + "=?", new String[] {String.valueOf(rowId)});
+
+        return withStoredBody(mCursor);
+
+    }
+
+    /**
+     * Put the real body into a cursor over one note, for a note whose body
+     * isn't kept in gen. The cursor has to end with the
+     * {@link #STORED_BODY_COLUMNS}, which the copy replaces with the body.
+     *
+     * @return the cursor itself, before its first row, or a copy of it with
+     * the body filled in
+     */
+    private Cursor withStoredBody(Cursor cursor) {
+        int bodyColumn = cursor.getColumnIndexOrThrow(KEY_BODY);
+        if (!cursor.moveToFirst() || cursor.getInt(bodyColumn + 1) == STORAGE_INLINE) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+
+        try {
+            String[] columns = new String[bodyColumn + 1];
+            System.arraycopy(cursor.getColumnNames(), 0, columns, 0, columns.length);
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < bodyColumn; i++) {
+                row[i] = cursor.getString(i);
+            }
+            row[bodyColumn] = loadBody(cursor.getLong(cursor.getColumnIndexOrThrow(KEY_ROWID)),
+                    cursor, bodyColumn);
+
+            MatrixCursor note = new MatrixCursor(columns, 1);
+            note.addRow(row);
+            return note;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A note as it is stored, with its body read back in full.
+     */
+    private static class StoredNote {
+        String title;
+        String body;
+        int catId;
+        long modified;
+        int storage;
+        String file;
+    }
+
+    /**
+     * @return the note, or null if there is no such note
+     */
+    private StoredNote fetchStoredNote(long rowId) {
+        Cursor cursor = mDb.rawQuery("SELECT " + KEY_TITLE + ", " + KEY_CATID + ", "
+                + KEY_MODIFIED + ", " + STORED_BODY_COLUMNS + " FROM " + DATABASE_TABLE
+                + " WHERE " + KEY_ROWID + " = ?", new String[] {String.valueOf(rowId)});
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            StoredNote note = new StoredNote();
+            note.title = cursor.getString(0);
+            note.catId = cursor.getInt(1);
+            note.modified = cursor.getLong(2);
+            note.storage = cursor.getInt(4);
+            note.file = cursor.getString(6);
+            note.body = loadBody(rowId, cursor, 3);
+            return note;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Set how long a body has to be before it is packed. Notes already saved
+     * keep their storage until they are next saved.
+     *
+     * @param chars the threshold in characters, or Integer.MAX_VALUE to stop
+     *              packing bodies
+     */
+    public static void setPackThreshold(int chars) {
+        sPackThreshold = chars;
+    }
+
+    /**
+     * @return how a body should be stored, one of the STORAGE_ constants
+     */
+    private static int storageFor(String body) {
+        if (body.length() >= FILE_THRESHOLD) {
+            return STORAGE_FILE;
+        }
+        if (body.length() >= BLOCK_THRESHOLD) {
+            return STORAGE_BLOCKS;
+        }
+        return body.length() >= sPackThreshold ? STORAGE_PACKED : STORAGE_INLINE;
+    }
+
+    /**
+     * Write the part of a note's body that isn't kept in gen, and drop any
+     * left from how it was stored before. A body that can't be written to
+     * a file is stored as blocks instead. The old file of a note that had
+     * one is left for the caller to delete once the write has committed.
+     *
+     * @return the name of the file the body was written to, or null
+     */
+    private String storeBody(long rowId, String body, int storage, int oldStorage) {
+        BodyFiles.Stored file = null;
+        boolean fellBack = false;
+        if (storage == STORAGE_FILE) {
+            try {
+                file = mFiles.write(rowId, body);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't write the body of note " + rowId + " to a file", e);
+                storage = STORAGE_BLOCKS;
+                fellBack = true;
+            }
+        }
+        if (file != null || fellBack || oldStorage == STORAGE_FILE) {
+            mStatements.setBodyFile(rowId, storage, file != null ? file.name : null,
+                    file != null ? file.hash : null);
+        }
+
+        if (storage == STORAGE_BLOCKS) {
+            mBlocks.write(rowId, body);
+        } else if (oldStorage == STORAGE_BLOCKS) {
+            mBlocks.clear(rowId);
+        }
+        return file != null ? file.name : null;
+    }
+
+    /**
+     * @param column the index of the first of the {@link #STORED_BODY_COLUMNS}
+     *               in the cursor
+     * @return the note's body, read from wherever it is kept
+     */
+    private String loadBody(long rowId, Cursor cursor, int column) {
+        try {
+            switch (cursor.getInt(column + 1)) {
+                case STORAGE_BLOCKS:
+                    return mBlocks.read(rowId);
+                case STORAGE_PACKED:
+                    return CompressedBody.unpack(cursor.getBlob(column + 2));
+                case STORAGE_FILE:
+                    return mFiles.read(cursor.getString(column + 3), cursor.getString(column + 4));
+                default:
+                    return cursor.getString(column);
+            }
+        } catch (IOException e) {
+            throw new SQLiteException("Couldn't read the body of note " + rowId + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the files of note bodies that no note points at any more, such
+     * as one written by a save that never committed. Cheap when there are
+     * none, but it lists a directory, so call it off the UI thread.
+     *
+     * @return the number of files removed
+     */
+    public int collectOrphanedBodies() {
+        HashSet<String> referenced = new HashSet<String>();
+        synchronized (mStatements) {
+            // writes hold the lock from writing a file until they commit, so
+            // every file written by then is in the table
+            Cursor cursor = mDb.rawQuery("SELECT " + KEY_BODY_FILE + " FROM " + DATABASE_TABLE
+                    + " WHERE " + KEY_STORAGE + " = " + STORAGE_FILE, null);
+            try {
+                while (cursor.moveToNext()) {
+                    referenced.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            return mFiles.collect(referenced);
+        }
+    }
+
+    /**
+     * Return a note with its body rendered for display. Notes viewed recently
+     * come from a cache, without querying or parsing them again.
+     *
+     * @param rowId id of note to retrieve
+     * @return the note, or null if there is no such note
+     */
+    public RenderedNote fetchRenderedNote(long rowId) {
+        RenderedNote note = sRenderedNotes.get(rowId);
+        if (note != null) {
+            return note;
+        }
+
+        int generation;
+        synchronized (sRenderedNotes) {
+            generation = sRenderedGeneration;
+        }
+        Cursor cursor = mDb.rawQuery("SELECT " + KEY_TITLE + ", " + KEY_CATID + ", "
+                + KEY_MODIFIED + ", " + STORED_BODY_COLUMNS + " FROM " + DATABASE_TABLE
+                + " WHERE " + KEY_ROWID + "=?", new String[] {String.valueOf(rowId)});
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            note = new RenderedNote(rowId, cursor.getString(0), loadBody(rowId, cursor, 3),
+                    cursor.getInt(1), cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (sRenderedNotes) {
+            if (generation == sRenderedGeneration) {
+                sRenderedNotes.put(rowId, note);
+            }
+        }
+        return note;
+    }
+
+    /**
+     * @return the note from the cache of rendered notes, or null if it isn't
+     * cached. This never touches the database, so it is safe on the UI thread.
+     */
+    public RenderedNote peekRenderedNote(long rowId) {
+        return sRenderedNotes.get(rowId);
+    }
+
+    private static void forgetRenderedNote(long rowId) {
+        synchronized (sRenderedNotes) {
+            sRenderedGeneration++;
+            sRenderedNotes.remove(rowId);
+        }
+    }
+
+    /**
+     * Return every category with the number of notes in it, in the order
+     * the drawer lists them: All Notes counts every note, Uncategorised the
+     * notes without a category, and every other category the notes whose
+     * cat_id is its position. The categories and counts both come from
+     * caches that the adapter's writes keep current, so once they are
+     * loaded this doesn't touch the database at all.
+     *
+     * @return Cursor over the _id, title and note_count of each category
+     */
+    public Cursor fetchCategoriesWithCounts() {
+        long[] ids;
+        String[] titles;
+        int generation;
+        synchronized (sCountLock) {
+            ids = sCategoryIds;
+            titles = sCategoryTitles;
+            generation = sCategoryGeneration;
+        }
+        if (ids == null) {
+            Cursor categories = mDb.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_TITLE
+                    + " FROM categories ORDER BY " + KEY_ROWID, null);
+            try {
+                ids = new long[categories.getCount()];
+                titles = new String[ids.length];
+                for (int i = 0; categories.moveToNext(); i++) {
+                    ids[i] = categories.getLong(0);
+                    titles[i] = categories.getString(1);
+                }
+            } finally {
+                categories.close();
+            }
+
+            synchronized (sCountLock) {
+                if (generation == sCategoryGeneration) {
+                    sCategoryIds = ids;
+                    sCategoryTitles = titles;
+                }
+            }
+        }
+
+        SparseIntArray counts = null;
+        synchronized (sCountLock) {
+            if (sCategoryCounts != null) {
+                counts = sCategoryCounts.clone();
+            }
+        }
+        if (counts == null) {
+            counts = loadCounts();
+        }
+        int total = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            total += counts.valueAt(i);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {KEY_ROWID, KEY_TITLE,
+                KEY_NOTE_COUNT}, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            int count;
+            if (i == 0) {
+                count = total;
+            } else if (i == 1) {
+                count = counts.get(0) + counts.get(1);
+            } else {
+                count = counts.get(i);
+            }
+            cursor.addRow(new Object[] {ids[i], titles[i], count});
+        }
+        return cursor;
+    }
+
+    /**
+     * Return a Cursor over the list of all categories in the database
+     *
+     * @return Cursor over all notes
+     * */
+    public Cursor fetchCategories() {
+
+        return mDb.query("categories", new String[] {KEY_ROWID, KEY_TITLE}
+                , null, null, null, null, null);
+
+    }
+
+    /**
+     * Return a Cursor over the list of nearly all categories in the database
+     *
+     * @return Cursor over all notes
+     * */
+    public Cursor fetchNearlyAllCategories() {
+
+        return mDb.query("categories", new String[] {KEY_ROWID, KEY_TITLE}
+                , KEY_ROWID + " NOT LIKE '%" + 1 + "%'", null, null, null, null);
+
+    }
+
+    /**
+     * Update the note using the details provided. The note to be updated is
+     * specified using the rowId, and it is altered to use the title and body
+     * values passed in. If the title or body changed, the new version is
+     * added to the note's revision history. Like every body written, it is
+     * stored as {@link HtmlNormalizer} rewrites it.
+     * 
+     * @param rowId id of note to update
+     * @param title value to set note title to
+     * @param body value to set note body to
+     * @param category value of the new category
+     * @return true if the note was successfully updated, false otherwise
+     */
+    public boolean updateNote(long rowId, String title, String body, int category) {
+        long now = System.currentTimeMillis();
+        body = HtmlNormalizer.normalize(body);
+        String text = HtmlStripper.strip(body);
+        String preview = makePreview(text);
+        int storage = storageFor(body);
+        byte[] packed = storage == STORAGE_PACKED ? CompressedBody.pack(body) : null;
+
+        int oldCategory = -1;
+        String oldFile = null;
+        String newFile = null;
+        boolean updated = false;
+        synchronized (mStatements) {
+            mDb.beginTransactionNonExclusive();
+            try {
+                StoredNote old = fetchStoredNote(rowId);
+                if (old != null) {
+                    oldCategory = old.catId;
+                    oldFile = old.file;
+                    mRevisions.record(rowId, old.title, old.body, old.modified, title, body, now);
+                    updated = mStatements.updateNote(rowId, title,
+                            storage == STORAGE_INLINE ? body : "", category, now, preview, storage,
+                            packed);
+                }
+                if (updated) {
+                    // a save often only changes the title, category or
+                    // styles, which leaves the stored body or the indexed
+                    // text as they were
+                    if (storage == old.storage && body.equals(old.body)) {
+                        newFile = oldFile;
+                    } else {
+                        newFile = storeBody(rowId, body, storage, old.storage);
+                    }
+                    if (!mStatements.isIndexed(rowId, title, text)) {
+                        mStatements.indexNote(rowId, title, text);
+                    }
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+
+            // only once the note points at its new file, and before another
+            // save could write the old one again
+            if (updated && oldFile != null && !oldFile.equals(newFile)) {
+                mFiles.delete(oldFile);
+            }
+        }
+
+        if (updated) {
+            sSearchCache.invalidate();
+            forgetRenderedNote(rowId);
+        }
+        if (updated && oldCategory != category) {
+            adjustCount(oldCategory, -1);
+            adjustCount(category, 1);
+        }
+        return updated;
+    }
+
+    /**
+     * Rewrite the bodies of notes saved before they were normalized, a few
+     * at a time so it can run in the background without holding up other
+     * writes for long. Notes keep their modified time, and a body that is
+     * already normal isn't written again unless it is kept in gen when it is
+     * long enough to be stored elsewhere.
+     *
+     * @param afterId only notes with a greater rowId are looked at
+     * @param limit the most notes to look at
+     * @return the rowId of the last note looked at, or -1 once there are no
+     * more notes after afterId
+     */
+    public long normalizeNotes(long afterId, int limit) {
+        long[] ids;
+        Cursor cursor = mDb.rawQuery("SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE
+                + " WHERE " + KEY_ROWID + " > ? ORDER BY " + KEY_ROWID + " LIMIT ?",
+                new String[] {String.valueOf(afterId), String.valueOf(limit)});
+        try {
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length == 0) {
+            return -1;
+        }
+
+        boolean changed = false;
+        for (long id : ids) {
+            if (normalizeNote(id)) {
+                forgetRenderedNote(id);
+                changed = true;
+            }
+        }
+        if (changed) {
+            sSearchCache.invalidate();
+        }
+        return ids[ids.length - 1];
+    }
+
+    /**
+     * @return true if the note's body was rewritten
+     */
+    private boolean normalizeNote(long rowId) {
+        String oldFile = null;
+        String newFile = null;
+        synchronized (mStatements) {
+            mDb.beginTransactionNonExclusive();
+            try {
+                StoredNote note = fetchStoredNote(rowId);
+                if (note == null) {
+                    return false;
+                }
+                String body = HtmlNormalizer.normalize(note.body);
+                if (body.equals(note.body) && (note.storage != STORAGE_INLINE
+                        || storageFor(body) == STORAGE_INLINE)) {
+                    return false;
+                }
+
+                // the revision history sees the body has changed under it
+                // and starts again from a keyframe the next time it is saved
+                String text = HtmlStripper.strip(body);
+                int storage = storageFor(body);
+                mStatements.updateNote(rowId, note.title, storage == STORAGE_INLINE ? body : "",
+                        note.catId, note.modified, makePreview(text), storage,
+                        storage == STORAGE_PACKED ? CompressedBody.pack(body) : null);
+                oldFile = note.file;
+                newFile = storeBody(rowId, body, storage, note.storage);
+                mStatements.indexNote(rowId, note.title, text);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+
+            if (oldFile != null && !oldFile.equals(newFile)) {
+                mFiles.delete(oldFile);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a Cursor over the saved versions of a note, newest first, with
+     * the _id, seq, created and title of each. The body of a revision is
+     * rebuilt on demand by {@link #fetchRevisionBody(long)}.
+     *
+     * @param rowId id of the note
+     * @return Cursor over the note's revisions
+     */
+    public Cursor fetchRevisions(long rowId) {
+        return mRevisions.list(rowId);
+    }
+
+    /**
+     * Rebuild the body of a note as it was at a revision.
+     *
+     * @param revisionId _id of the revision
+     * @return the body, or null if there is no such revision
+     */
+    public String fetchRevisionBody(long revisionId) {
+        RevisionStore.Revision revision = mRevisions.load(revisionId);
+        return revision != null ? revision.body : null;
+    }
+
+    /**
+     * Put a note back to how it was at a revision. The note keeps its
+     * category, and the restore is itself recorded as a new revision, so it
+     * can be undone the same way.
+     *
+     * @param revisionId _id of the revision
+     * @return true if the note was restored
+     */
+    public boolean restoreRevision(long revisionId) {
+        RevisionStore.Revision revision = mRevisions.load(revisionId);
+        if (revision == null) {
+            return false;
+        }
+
+        int category;
+        synchronized (mStatements) {
+            category = mStatements.categoryOf(revision.noteId);
+        }
+        return category >= 0
+                && updateNote(revision.noteId, revision.title, revision.body, category);
+    }
+
+    /**
+     * Drop the revisions of a note that a retention policy doesn't keep.
+     * {@link RetentionPolicy#DEFAULT} is applied on its own as the history
+     * grows; this applies a stricter one.
+     *
+     * @param rowId id of the note
+     */
+    public void pruneRevisions(long rowId, RetentionPolicy policy) {
+        synchronized (mStatements) {
+            mDb.beginTransactionNonExclusive();
+            try {
+                mRevisions.prune(rowId, policy, System.currentTimeMillis());
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Write every note as JSON to the given stream, in the same format Gson
+     * produces for a list of {@link Note}s. Notes are written one at a time
+     * as the cursor reaches them, so the whole backup is never held in memory.
+     * The stream is flushed but not closed.
+     *
+     * @param out the stream to write the backup to
+     * @return the number of notes written
+     * @throws IOException if the stream can't be written to
+     */
+    public int exportNotes(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.setIndent("  ");
+
+        int count = 0;
+        Cursor cursor = mDb.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_TITLE + ", "
+                + STORED_BODY_COLUMNS + " FROM " + DATABASE_TABLE + " ORDER BY "
+                + orderBy(SORT_TITLE), null);
+        try {
+            writer.beginArray();
+            while (cursor.moveToNext()) {
+                writer.beginObject();
+                writer.name("id").value(cursor.getLong(0));
+                // categories aren't part of the backup, so every note is
+                // restored as uncategorised
+                writer.name("catId").value(0);
+                writer.name("title").value(cursor.getString(1));
+                writer.name("text").value(loadBody(cursor.getLong(0), cursor, 2));
+                writer.endObject();
+                count++;
+            }
+            writer.endArray();
+        } finally {
+            cursor.close();
+        }
+
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Compose SQLite records out of JSON
+     * @return
+     */
+    public void createNotesFromJson(String json) {
+        try {
+            importNotesFromJson(new StringReader(json), null);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read notes from JSON", e);
+        }
+    }
+
+    /**
+     * Restore a backup written by {@link #exportNotes(OutputStream)}. Notes
+     * are parsed one at a time and handed to
+     * {@link #importNotes(Iterator, ImportListener)} as they are read, so
+     * memory use doesn't grow with the size of the backup. This does disk
+     * I/O and should be called off the UI thread.
+     *
+     * @param in the backup to read
+     * @param listener told about progress and asked whether to stop, or null
+     * @return how many notes were inserted and how many failed
+     * @throws IOException if the backup can't be read or isn't valid JSON.
+     * Notes in the batches before the error are kept.
+     */
+    public ImportResult importNotesFromJson(Reader in, ImportListener listener) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.beginArray();
+        try {
+            return importNotes(new JsonNoteIterator(reader), listener);
+        } catch (ReadFailedException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads the notes out of a JSON array one at a time. The reader has to
+     * be positioned inside the array.
+     */
+    private static class JsonNoteIterator implements Iterator<Note> {
+        private final JsonReader reader;
+
+        JsonNoteIterator(JsonReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return reader.hasNext();
+            } catch (IOException e) {
+                throw new ReadFailedException(e);
+            }
+        }
+
+        @Override
+        public Note next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            boolean inObject = false;
+            try {
+                Note note = new Note();
+                reader.beginObject();
+                inObject = true;
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else if (name.equals("id")) {
+                        note.setId(reader.nextInt());
+                    } else if (name.equals("catId")) {
+                        note.setCatId(reader.nextInt());
+                    } else if (name.equals("title")) {
+                        note.setTitle(reader.nextString());
+                    } else if (name.equals("text")) {
+                        note.setText(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return note;
+            } catch (IOException e) {
+                throw new ReadFailedException(e);
+            } catch (IllegalStateException e) {
+                // a value of the wrong type, such as an object for the text
+                return skipMalformed(inObject);
+            } catch (NumberFormatException e) {
+                return skipMalformed(inObject);
+            }
+        }
+
+        /**
+         * Skip what is left of an entry that couldn't be read. The reader
+         * leaves the value it failed on unread, so it is skipped along with
+         * the rest of the entry.
+         *
+         * @param inObject true if the entry is an object that was begun
+         * @return null, which the import counts as a failed note
+         */
+        private Note skipMalformed(boolean inObject) {
+            try {
+                reader.skipValue();
+                if (inObject) {
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                }
+                return null;
+            } catch (IOException e) {
+                throw new ReadFailedException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Carries an IOException out of {@link JsonNoteIterator}, whose methods
+     * can't throw checked exceptions.
+     */
+    private static class ReadFailedException extends RuntimeException {
+        ReadFailedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Insert a large number of notes at once. The notes are inserted in
+     * batches, each batch in its own transaction using the same compiled
+     * statements, so a restore doesn't pay for a commit per note. Each body
+     * is stored the way a save would store it, and is packed before its
+     * batch's transaction starts. Notes that can't be inserted are counted as
+     * failed and skipped.
+     *
+     * @param notes the notes to insert
+     * @param listener told about progress and asked whether to stop, or null
+     * @return how many notes were inserted and how many failed
+     */
+    public ImportResult importNotes(Iterator<Note> notes, ImportListener listener) {
+        long started = System.currentTimeMillis();
+        int inserted = 0;
+        int failed = 0;
+        boolean cancelled = false;
+
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + DATABASE_TABLE + " ("
+                + KEY_TITLE + ", " + KEY_BODY + ", " + KEY_CATID + ", " + KEY_CREATED + ", "
+                + KEY_MODIFIED + ", " + KEY_PREVIEW + ", " + KEY_STORAGE + ", "
+                + KEY_PACKED_BODY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement index = mDb.compileStatement("INSERT INTO " + FTS_TABLE
+                + " (docid, " + KEY_TITLE + ", " + KEY_BODY + ") VALUES (?, ?, ?)");
+        ArrayList<ImportedNote> batch = new ArrayList<ImportedNote>();
+        try {
+            while (notes.hasNext() && !cancelled) {
+                batch.clear();
+                int chars = 0;
+                while (batch.size() < IMPORT_BATCH_SIZE && chars < IMPORT_BATCH_CHARS
+                        && notes.hasNext()) {
+                    if (listener != null && listener.isCancelled()) {
+                        cancelled = true;
+                        break;
+                    }
+                    ImportedNote note = ImportedNote.prepare(notes.next());
+                    if (note == null) {
+                        failed++;
+                        continue;
+                    }
+                    batch.add(note);
+                    chars += note.body.length();
+                }
+
+                synchronized (mStatements) {
+                    // files are written under the lock, so they aren't
+                    // collected as orphans before the batch commits
+                    mDb.beginTransactionNonExclusive();
+                    try {
+                        for (ImportedNote note : batch) {
+                            if (insertNote(insert, index, note)) {
+                                inserted++;
+                            } else {
+                                failed++;
+                            }
+                        }
+                        mDb.setTransactionSuccessful();
+                    } finally {
+                        mDb.endTransaction();
+                    }
+                }
+
+                if (listener != null) {
+                    listener.onProgress(inserted, failed);
+                }
+            }
+        } finally {
+            insert.close();
+            index.close();
+            invalidateCounts();
+            sSearchCache.invalidate();
+        }
+
+        return new ImportResult(inserted, failed, cancelled,
+                System.currentTimeMillis() - started);
+    }
+
+    /**
+     * A note of a bulk import, ready to be inserted.
+     */
+    private static class ImportedNote {
+        final String title;
+        final String body;
+        final String text;
+        final int catId;
+        final int storage;
+        final byte[] packed;
+
+        private ImportedNote(String title, String body, int catId) {
+            this.title = title;
+            this.body = body;
+            this.text = HtmlStripper.strip(body);
+            this.catId = catId;
+            this.storage = storageFor(body);
+            this.packed = storage == STORAGE_PACKED ? CompressedBody.pack(body) : null;
+        }
+
+        /**
+         * @return the note ready to insert, or null if it can't be
+         */
+        static ImportedNote prepare(Note note) {
+            if (note == null || note.getTitle() == null || note.getText() == null) {
+                return null;
+            }
+            return new ImportedNote(note.getTitle(), HtmlNormalizer.normalize(note.getText()),
+                    note.getCatId());
+        }
+    }
+
+    /**
+     * Insert and index one note of a bulk import, writing its body wherever
+     * it is kept. Called holding the lock on the statements, inside the
+     * batch's transaction. If any part fails, none of the note is kept.
+     *
+     * @return true if the note was inserted
+     */
+    private boolean insertNote(SQLiteStatement insert, SQLiteStatement index, ImportedNote note) {
+        long now = System.currentTimeMillis();
+        insert.bindString(1, note.title);
+        insert.bindString(2, note.storage == STORAGE_INLINE ? note.body : "");
+        insert.bindLong(3, note.catId);
+        insert.bindLong(4, now);
+        insert.bindLong(5, now);
+        insert.bindString(6, makePreview(note.text));
+        insert.bindLong(7, note.storage);
+        if (note.packed != null) {
+            insert.bindBlob(8, note.packed);
+        } else {
+            insert.bindNull(8);
+        }
+        // a note that fails part way is taken back out of the batch whole,
+        // so it isn't left in gen without its body or its index entry
+        mDb.execSQL("SAVEPOINT import_note");
+        boolean inserted = false;
+        try {
+            long id = insert.executeInsert();
+            if (id > 0) {
+                storeBody(id, note.body, note.storage, STORAGE_INLINE);
+                index.bindLong(1, id);
+                index.bindString(2, note.title);
+                index.bindString(3, note.text);
+                index.executeInsert();
+                inserted = true;
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to import note " + note.title, e);
+        } finally {
+            if (!inserted) {
+                mDb.execSQL("ROLLBACK TO import_note");
+            }
+            mDb.execSQL("RELEASE import_note");
+        }
+        return inserted;
+    }
+
+    /**
+     * Receives progress from {@link #importNotes(Iterator, ImportListener)}.
+     * Both methods are called on the thread doing the import.
+     */
+    public interface ImportListener {
+        /**
+         * Called after each batch of notes has been committed.
+         */
+        public void onProgress(int inserted, int failed);
+
+        /**
+         * @return true to stop the import before the next note. Notes that
+         * have already been inserted are kept.
+         */
+        public boolean isCancelled();
+    }
+
+    /**
+     * The outcome of a bulk import
+     */
+    public static class ImportResult {
+        public final int inserted;
+        public final int failed;
+        public final boolean cancelled;
+        public final long elapsedMillis;
+
+        ImportResult(int inserted, int failed, boolean cancelled, long elapsedMillis) {
+            this.inserted = inserted;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    /**
+     * Write the searchable text of a note into the full text index,
+     * replacing whatever was indexed for it before.
+     */
+    private static void indexNote(SQLiteDatabase db, long rowId, String title, String text) {
+        db.delete(FTS_TABLE, "docid = " + rowId, null);
+
+        ContentValues values = new ContentValues();
+        values.put("docid", rowId);
+        values.put(KEY_TITLE, title);
+        values.put(KEY_BODY, text);
+        db.insert(FTS_TABLE, null, values);
+    }
+
+    /**
+     * Cut the plain text of a note down to what the list shows of it, with
+     * runs of whitespace and line breaks collapsed into single spaces.
+     */
+    static String makePreview(String text) {
+        StringBuilder preview = new StringBuilder(Math.min(text.length(), PREVIEW_LENGTH));
+        boolean space = false;
+        for (int i = 0; i < text.length() && preview.length() < PREVIEW_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = preview.length() > 0;
+            } else {
+                if (space) {
+                    preview.append(' ');
+                    space = false;
+                }
+                preview.append(c);
+            }
+        }
+        int length = Math.min(preview.length(), PREVIEW_LENGTH);
+        if (length > 0 && Character.isHighSurrogate(preview.charAt(length - 1))) {
+            length--;
+        }
+        preview.setLength(length);
+        return preview.toString();
+    }
+
+    /**
+     * Turn a query typed by the user into an FTS match expression. Every word
+     * has to be present and is matched as a prefix. Words are split and
+     * lower cased the way the index's tokenizer does it, so anything that
+     * isn't an ASCII letter or digit, or a non-ASCII character, separates
+     * words. That also keeps the FTS operators and quotes out of the
+     * expression.
+     *
+     * @return the match expression, or null if the query has no words in it
+     */
+    static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !isWordChar(query.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && isWordChar(query.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(fold(query.substring(start, i))).append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * The FTS "simple" tokenizer splits words on anything that isn't an ASCII
+     * letter or digit, and treats every non-ASCII character as part of a word.
+     */
+    static boolean isWordChar(char c) {
+        return c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Lower case text the same way the index does, which only folds ASCII.
+     */
+    static String fold(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
         }
+        return new String(chars);
     }
 
     private static String sample(String s) {
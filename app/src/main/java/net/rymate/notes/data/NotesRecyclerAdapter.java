@@ -20,12 +20,13 @@ public class NotesRecyclerAdapter extends CursorRecyclerAdapter<NotesRecyclerAda
     public NotesRecyclerAdapter(Cursor cursor, Activity activity) {
         super(cursor);
         this.activity = activity;
+        setHasStableIds(true);
     }
 
     @Override
     public void onBindViewHolderCursor(ViewHolder holder, Cursor cursor) {
         holder.text.setText(
-                cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_BODY)).replaceAll("\\<[^>]*>", ""));
+                cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_PREVIEW)));
 
         holder.title.setText(
                 cursor.getString(cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_TITLE)));
@@ -54,7 +55,8 @@ public class NotesRecyclerAdapter extends CursorRecyclerAdapter<NotesRecyclerAda
 
         @Override
         public void onClick(View v) {
-            if (mItemClickListener != null) {
+            // rows without a note have negative ids
+            if (mItemClickListener != null && id > 0) {
                 mItemClickListener.onItemClick(v, id);
             }
         }
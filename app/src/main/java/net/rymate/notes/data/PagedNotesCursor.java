@@ -0,0 +1,389 @@
+package net.rymate.notes.data;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A Cursor over a list of notes which only holds a few pages of them in
+ * memory at a time. Pages are loaded as the cursor is moved onto them.
+ *
+ * Each page carries on from the last row of the page before it (keyset
+ * pagination), so a page costs the same to load wherever it is in the list.
+ * Only a page that is reached before the page above it has been loaded,
+ * such as after a fast scroll, falls back to an OFFSET query.
+ *
+ * Given an executor, the cursor loads the page next to the one being read
+ * on it before it is reached, so scrolling steadily never waits for a
+ * query on the UI thread. Only a jump to a page that hasn't been loaded
+ * reads it there.
+ *
+ * The number of rows comes from the cached note counts, so creating the
+ * cursor doesn't touch the notes at all. Each page is checked against that
+ * count as it loads, with one row more than it shows to tell whether there
+ * are notes after it. If a page disagrees with the count, the cached counts
+ * are dropped and content observers are told, so the list is loaded again
+ * with a fresh count.
+ */
+class PagedNotesCursor extends AbstractCursor {
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 6;
+
+    /**
+     * The most rows held in memory at once
+     */
+    static final int MAX_ROWS = MAX_PAGES * PAGE_SIZE;
+
+    static final String[] COLUMNS = {NotesDbAdapter.KEY_ROWID, NotesDbAdapter.KEY_TITLE,
+            NotesDbAdapter.KEY_PREVIEW, NotesDbAdapter.KEY_CREATED, NotesDbAdapter.KEY_MODIFIED};
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_MODIFIED = 4;
+
+    private final SQLiteDatabase mDb;
+    private final NoteQuery mQuery;
+    private final int mSortColumn;
+    private final int mCount;
+    private final Executor mPrefetcher;
+    private volatile boolean mStale;
+
+    private final Map<Integer, Object[][]> mPages =
+            new LinkedHashMap<Integer, Object[][]>(MAX_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    /**
+     * The last row of each page that has been loaded, which is where the
+     * page after it starts. These are kept after the pages are dropped.
+     */
+    private final SparseArray<Object[]> mPageStarts = new SparseArray<Object[]>();
+
+    /**
+     * The pages being loaded ahead. This and the pages above are only
+     * touched holding the lock on mPages, as prefetches fill them in from
+     * another thread.
+     */
+    private final HashSet<Integer> mPrefetching = new HashSet<Integer>();
+
+    private Object[] mRow = placeholder(0);
+
+    /**
+     * @param query picks and sorts the notes; its columns, limit and offset
+     *              are replaced
+     * @param count the number of notes the query matches
+     * @param prefetcher loads pages ahead of the one being read, or null to
+     *                   only load them when they are reached
+     */
+    PagedNotesCursor(SQLiteDatabase db, NoteQuery query, int count, Executor prefetcher) {
+        mDb = db;
+        mQuery = query.copy().columns(COLUMNS);
+        mCount = count;
+        mPrefetcher = prefetcher;
+
+        String sortKey = NotesDbAdapter.sortKey(query.getSort());
+        int sortColumn = 0;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(sortKey)) {
+                sortColumn = i;
+            }
+        }
+        mSortColumn = sortColumn;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int page = newPosition / PAGE_SIZE;
+        Object[][] rows;
+        synchronized (mPages) {
+            rows = mPages.get(page);
+        }
+        if (rows == null) {
+            rows = loadPage(page);
+        }
+
+        int index = newPosition % PAGE_SIZE;
+        mRow = index < rows.length ? rows[index] : placeholder(newPosition);
+
+        // load the page the reader is heading towards before it gets there
+        if (index >= PAGE_SIZE / 2) {
+            prefetch(page + 1);
+        } else if (page > 0) {
+            prefetch(page - 1);
+        }
+        return true;
+    }
+
+    private void prefetch(final int page) {
+        if (mPrefetcher == null || page * PAGE_SIZE >= mCount) {
+            return;
+        }
+        synchronized (mPages) {
+            if (mPages.containsKey(page) || !mPrefetching.add(page)) {
+                return;
+            }
+        }
+
+        try {
+            mPrefetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!isClosed()) {
+                            loadPage(page);
+                        }
+                    } catch (RuntimeException e) {
+                        // the page is loaded again when it is reached
+                    } finally {
+                        synchronized (mPages) {
+                            mPrefetching.remove(page);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the list is going away
+            synchronized (mPages) {
+                mPrefetching.remove(page);
+            }
+        }
+    }
+
+    /**
+     * A blank row for a position the count promised but the notes no longer
+     * fill, shown until the list is loaded again. Its id is negative, so it
+     * is never taken for a note.
+     */
+    private static Object[] placeholder(int position) {
+        return new Object[] {-1L - position, "", "", 0L, 0L};
+    }
+
+    /**
+     * Load the first page, to check the count against it before the cursor
+     * is shown.
+     *
+     * @return false if the page didn't match the count, which has been
+     * dropped from the cache
+     */
+    boolean checkFirstPage() {
+        boolean loaded;
+        synchronized (mPages) {
+            loaded = mPages.containsKey(0);
+        }
+        if (!loaded) {
+            loadPage(0);
+        }
+        return !mStale;
+    }
+
+    /**
+     * The count the cursor was made with is wrong. Drop the cached counts
+     * and tell the observers, which are called back through their own
+     * handlers, so the list is loaded again.
+     */
+    private void markStale() {
+        synchronized (mPages) {
+            if (mStale) {
+                return;
+            }
+            mStale = true;
+        }
+        NotesDbAdapter.invalidateCounts();
+        onChange(false);
+    }
+
+    /**
+     * Read a page and keep it. Runs on whichever thread needs the page; the
+     * query itself runs without holding the lock.
+     */
+    private Object[][] loadPage(int page) {
+        NoteQuery query = mQuery.copy().limit(PAGE_SIZE + 1);
+        Object[] start;
+        synchronized (mPages) {
+            start = page > 0 ? mPageStarts.get(page - 1) : null;
+        }
+        if (start != null) {
+            query.after(start[mSortColumn], (Long) start[COLUMN_ID]);
+        } else {
+            query.offset(page * PAGE_SIZE);
+        }
+
+        Cursor cursor = mDb.rawQuery(query.getSql(), query.getArgs());
+        try {
+            int found = cursor.getCount();
+            Object[][] rows = new Object[Math.min(found, PAGE_SIZE)][];
+            for (int i = 0; i < rows.length && cursor.moveToNext(); i++) {
+                rows[i] = new Object[] {cursor.getLong(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getLong(3), cursor.getLong(4)};
+            }
+            synchronized (mPages) {
+                if (rows.length > 0) {
+                    mPageStarts.put(page, rows[rows.length - 1]);
+                }
+                mPages.put(page, rows);
+            }
+
+            int expected = Math.max(0, Math.min(PAGE_SIZE, mCount - page * PAGE_SIZE));
+            boolean more = (page + 1) * PAGE_SIZE < mCount;
+            if (rows.length != expected || (found > PAGE_SIZE) != more) {
+                // notes were added or removed without the counts knowing
+                markStale();
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Snapshot the rows loaded from the top of the list, up to the first
+     * page that isn't in memory. This doesn't query or move the cursor.
+     */
+    NoteListSnapshot loadedRows() {
+        synchronized (mPages) {
+            int rows = 0;
+            while (rows < mCount && rows < MAX_ROWS && mPages.containsKey(rows / PAGE_SIZE)) {
+                rows += mPages.get(rows / PAGE_SIZE).length;
+                if (rows % PAGE_SIZE != 0) {
+                    break;
+                }
+            }
+            rows = Math.min(rows, mCount);
+
+            long[] ids = new long[rows];
+            long[] versions = new long[rows];
+            for (int i = 0; i < rows; i++) {
+                Object[] row = mPages.get(i / PAGE_SIZE)[i % PAGE_SIZE];
+                ids[i] = (Long) row[COLUMN_ID];
+                versions[i] = (Long) row[COLUMN_MODIFIED];
+            }
+            return new NoteListSnapshot(ids, versions, mCount);
+        }
+    }
+
+    /**
+     * Load the pages the first rows are on and snapshot those rows. If the
+     * notes no longer fill them, the snapshot is short.
+     */
+    NoteListSnapshot firstRows(int rows) {
+        Object[][][] pages = new Object[(rows + PAGE_SIZE - 1) / PAGE_SIZE][][];
+        for (int page = 0; page < pages.length; page++) {
+            synchronized (mPages) {
+                pages[page] = mPages.get(page);
+            }
+            if (pages[page] == null) {
+                pages[page] = loadPage(page);
+            }
+        }
+
+        long[] ids = new long[rows];
+        long[] versions = new long[rows];
+        int found = 0;
+        for (; found < rows; found++) {
+            Object[][] page = pages[found / PAGE_SIZE];
+            if (found % PAGE_SIZE >= page.length) {
+                break;
+            }
+            Object[] row = page[found % PAGE_SIZE];
+            ids[found] = (Long) row[COLUMN_ID];
+            versions[found] = (Long) row[COLUMN_MODIFIED];
+        }
+        if (found < rows) {
+            long[] foundIds = new long[found];
+            long[] foundVersions = new long[found];
+            System.arraycopy(ids, 0, foundIds, 0, found);
+            System.arraycopy(versions, 0, foundVersions, 0, found);
+            return new NoteListSnapshot(foundIds, foundVersions, mCount);
+        }
+        return new NoteListSnapshot(ids, versions, mCount);
+    }
+
+    /**
+     * A cursor can find it is stale before it is shown, with nobody yet
+     * observing it, so tell observers as soon as they start.
+     */
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        super.registerContentObserver(observer);
+        if (mStale) {
+            observer.dispatchChange(false);
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = mRow[column];
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = mRow[column];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = mRow[column];
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        }
+        return value instanceof Number ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mRow[column] == null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mPages) {
+            mPages.clear();
+            mPageStarts.clear();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.rymate.notes.data;
+
+import android.text.Html;
+import android.text.Spanned;
+import android.text.SpannedString;
+
+/**
+ * A note as the viewer shows it, with its body already turned from HTML
+ * into styled text. These are cached by {@link NotesDbAdapter#fetchRenderedNote(long)},
+ * so the text is immutable and shared between everyone showing the note.
+ */
+public class RenderedNote {
+    public final long rowId;
+    public final String title;
+    public final String body;
+    public final int catId;
+    public final long modified;
+    public final Spanned text;
+
+    RenderedNote(long rowId, String title, String body, int catId, long modified) {
+        this.rowId = rowId;
+        this.title = title;
+        this.body = body;
+        this.catId = catId;
+        this.modified = modified;
+        this.text = new SpannedString(Html.fromHtml(body == null ? "" : body));
+    }
+
+    /**
+     * @return roughly how many characters the note holds in memory
+     */
+    int size() {
+        return (title == null ? 0 : title.length()) + (body == null ? 0 : body.length())
+                + text.length();
+    }
+}
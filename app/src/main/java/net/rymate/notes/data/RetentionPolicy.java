@@ -0,0 +1,42 @@
+package net.rymate.notes.data;
+
+/**
+ * How much of a note's revision history to keep. A revision is dropped once
+ * it is beyond the newest {@link #maxRevisions}, or older than
+ * {@link #maxAgeMillis}. The newest revision is always kept.
+ */
+public class RetentionPolicy {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Applied to a note as its history grows
+     */
+    public static final RetentionPolicy DEFAULT = new RetentionPolicy(200, 90 * DAY);
+
+    public final int maxRevisions;
+    public final long maxAgeMillis;
+
+    /**
+     * @param maxRevisions the most revisions to keep, or 0 for no limit
+     * @param maxAgeMillis how long to keep a revision for, or 0 for ever
+     */
+    public RetentionPolicy(int maxRevisions, long maxAgeMillis) {
+        this.maxRevisions = maxRevisions;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Keep only the newest revisions.
+     */
+    public static RetentionPolicy keepLast(int maxRevisions) {
+        return new RetentionPolicy(maxRevisions, 0);
+    }
+
+    /**
+     * Keep only the revisions saved within the given time.
+     */
+    public static RetentionPolicy keepFor(long maxAgeMillis) {
+        return new RetentionPolicy(0, maxAgeMillis);
+    }
+}
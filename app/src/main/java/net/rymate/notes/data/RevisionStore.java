@@ -0,0 +1,398 @@
+package net.rymate.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The saved versions of each note, kept in the revisions table.
+ *
+ * Most revisions only hold what changed since the one before: the length of
+ * the text the two versions start and end with, and the text that replaced
+ * everything in between. Every {@link #KEYFRAME_INTERVAL}th revision holds the
+ * whole body instead, so rebuilding any version starts from the keyframe
+ * before it and applies fewer than that many changes. Both kinds are
+ * deflated before they are stored.
+ *
+ * Revisions are numbered from 1 per note by seq. The chain column counts the
+ * changes since the last keyframe, so a keyframe is a revision with a chain
+ * of 0. Each row also has the String hash of the body it leads to, which
+ * catches a note whose body was changed without a revision being recorded.
+ *
+ * Like {@link NoteStatements}, callers hold the lock on the adapter's
+ * statements while writing, and write inside a transaction.
+ */
+class RevisionStore {
+    private static final String TAG = "RevisionStore";
+
+    static final String TABLE = "revisions";
+    static final String KEY_NOTE = "note_id";
+    static final String KEY_SEQ = "seq";
+
+    static final String TABLE_CREATE =
+            "create table revisions (_id integer primary key autoincrement, "
+                    + "note_id integer not null, seq integer not null, "
+                    + "created integer not null, title text, chain integer not null, "
+                    + "hash integer not null, data blob not null);";
+
+    static final String INDEX_CREATE =
+            "create unique index revisions_note_seq on revisions (note_id, seq);";
+
+    /**
+     * A note's history goes with it when it is deleted.
+     */
+    static final String DELETE_TRIGGER =
+            "create trigger gen_revisions_delete after delete on gen begin "
+                    + "delete from revisions where note_id = old._id; end;";
+
+    /**
+     * The most revisions in a row that are stored as changes. Rebuilding a
+     * revision reads at most this many rows.
+     */
+    static final int KEYFRAME_INTERVAL = 16;
+
+    /**
+     * The columns of {@link #list(long)}
+     */
+    static final String[] COLUMNS = {NotesDbAdapter.KEY_ROWID, KEY_SEQ,
+            NotesDbAdapter.KEY_CREATED, NotesDbAdapter.KEY_TITLE};
+
+    /**
+     * A rebuilt revision.
+     */
+    static class Revision {
+        final long noteId;
+        final String title;
+        final String body;
+
+        Revision(long noteId, String title, String body) {
+            this.noteId = noteId;
+            this.title = title;
+            this.body = body;
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+
+    RevisionStore(SQLiteDatabase db) {
+        mDb = db;
+        mInsert = db.compileStatement("INSERT INTO " + TABLE + " (" + KEY_NOTE + ", " + KEY_SEQ
+                + ", created, title, chain, hash, data) VALUES (?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * Record a new version of a note, before the note itself is updated to
+     * it. The version the note has now is the one the change is made
+     * against; if the note has no history yet, that version is stored as
+     * its first revision. Nothing is recorded if the title and body are
+     * unchanged.
+     *
+     * @param oldTitle the title the note has now
+     * @param oldBody the body the note has now
+     * @param oldModified when the note was last modified
+     * @return true if a revision was recorded
+     */
+    boolean record(long noteId, String oldTitle, String oldBody, long oldModified,
+                   String title, String body, long now) {
+        if (body.equals(oldBody) && equal(title, oldTitle)) {
+            return false;
+        }
+
+        long seq = 0;
+        int chain = 0;
+        int hash = 0;
+        Cursor last = mDb.rawQuery("SELECT " + KEY_SEQ + ", chain, hash FROM " + TABLE
+                + " WHERE " + KEY_NOTE + " = ? ORDER BY " + KEY_SEQ + " DESC LIMIT 1",
+                new String[] {String.valueOf(noteId)});
+        try {
+            if (last.moveToFirst()) {
+                seq = last.getLong(0);
+                chain = last.getInt(1);
+                hash = last.getInt(2);
+            }
+        } finally {
+            last.close();
+        }
+
+        if (seq == 0 || hash != oldBody.hashCode()) {
+            // either the note predates its history, or it was changed behind
+            // the history's back; a change against it would rebuild the
+            // wrong text, so it starts again from a keyframe
+            seq++;
+            chain = 0;
+            insert(noteId, seq, oldModified, oldTitle, 0, oldBody, encodeKeyframe(oldBody));
+        }
+
+        seq++;
+        byte[] data = null;
+        if (chain + 1 < KEYFRAME_INTERVAL) {
+            data = encodeChange(oldBody, body);
+            chain++;
+        }
+        if (data == null) {
+            data = encodeKeyframe(body);
+            chain = 0;
+        }
+        insert(noteId, seq, now, title, chain, body, data);
+
+        if (seq % KEYFRAME_INTERVAL == 0) {
+            prune(noteId, RetentionPolicy.DEFAULT, now);
+        }
+        return true;
+    }
+
+    /**
+     * @return Cursor over the revisions of a note, newest first, with the
+     * columns in {@link #COLUMNS}
+     */
+    Cursor list(long noteId) {
+        return mDb.rawQuery("SELECT " + NotesDbAdapter.KEY_ROWID + ", " + KEY_SEQ + ", "
+                + NotesDbAdapter.KEY_CREATED + ", " + NotesDbAdapter.KEY_TITLE + " FROM "
+                + TABLE + " WHERE " + KEY_NOTE + " = ? ORDER BY " + KEY_SEQ + " DESC",
+                new String[] {String.valueOf(noteId)});
+    }
+
+    /**
+     * Rebuild a revision from the keyframe before it.
+     *
+     * @param revisionId the _id of the revision
+     * @return the revision, or null if there is no such revision or it
+     * can't be read
+     */
+    Revision load(long revisionId) {
+        long noteId;
+        long seq;
+        String title;
+        Cursor revision = mDb.rawQuery("SELECT " + KEY_NOTE + ", " + KEY_SEQ + ", title FROM "
+                + TABLE + " WHERE " + NotesDbAdapter.KEY_ROWID + " = ?",
+                new String[] {String.valueOf(revisionId)});
+        try {
+            if (!revision.moveToFirst()) {
+                return null;
+            }
+            noteId = revision.getLong(0);
+            seq = revision.getLong(1);
+            title = revision.getString(2);
+        } finally {
+            revision.close();
+        }
+
+        String body = rebuild(noteId, seq);
+        return body != null ? new Revision(noteId, title, body) : null;
+    }
+
+    /**
+     * Drop the revisions of a note that the policy doesn't keep. The oldest
+     * revision kept is turned into a keyframe first if it isn't one, as the
+     * revisions it was a change against are going.
+     */
+    void prune(long noteId, RetentionPolicy policy, long now) {
+        String note = String.valueOf(noteId);
+        long first = queryLong("SELECT MIN(" + KEY_SEQ + ") FROM " + TABLE + " WHERE "
+                + KEY_NOTE + " = ?", note);
+        long keepFrom = first;
+        if (policy.maxRevisions > 0) {
+            keepFrom = Math.max(keepFrom, queryLong("SELECT " + KEY_SEQ + " FROM " + TABLE
+                    + " WHERE " + KEY_NOTE + " = ? ORDER BY " + KEY_SEQ + " DESC LIMIT 1 OFFSET "
+                    + (policy.maxRevisions - 1), note));
+        }
+        if (policy.maxAgeMillis > 0) {
+            long youngest = queryLong("SELECT MIN(" + KEY_SEQ + ") FROM " + TABLE + " WHERE "
+                    + KEY_NOTE + " = ? AND created >= " + (now - policy.maxAgeMillis), note);
+            if (youngest == 0) {
+                // everything has expired, but the newest revision stays
+                youngest = queryLong("SELECT MAX(" + KEY_SEQ + ") FROM " + TABLE + " WHERE "
+                        + KEY_NOTE + " = ?", note);
+            }
+            keepFrom = Math.max(keepFrom, youngest);
+        }
+        if (keepFrom <= first) {
+            return;
+        }
+
+        long chain = queryLong("SELECT chain FROM " + TABLE + " WHERE " + KEY_NOTE + " = ? AND "
+                + KEY_SEQ + " = " + keepFrom, note);
+        if (chain != 0) {
+            String body = rebuild(noteId, keepFrom);
+            if (body == null) {
+                return;
+            }
+            SQLiteStatement update = mDb.compileStatement("UPDATE " + TABLE
+                    + " SET chain = 0, data = ? WHERE " + KEY_NOTE + " = ? AND " + KEY_SEQ + " = ?");
+            try {
+                update.bindBlob(1, encodeKeyframe(body));
+                update.bindLong(2, noteId);
+                update.bindLong(3, keepFrom);
+                update.executeUpdateDelete();
+            } finally {
+                update.close();
+            }
+        }
+        mDb.delete(TABLE, KEY_NOTE + " = ? AND " + KEY_SEQ + " < ?",
+                new String[] {note, String.valueOf(keepFrom)});
+    }
+
+    void close() {
+        mInsert.close();
+    }
+
+    private void insert(long noteId, long seq, long created, String title, int chain,
+                        String body, byte[] data) {
+        mInsert.bindLong(1, noteId);
+        mInsert.bindLong(2, seq);
+        mInsert.bindLong(3, created);
+        if (title == null) {
+            mInsert.bindNull(4);
+        } else {
+            mInsert.bindString(4, title);
+        }
+        mInsert.bindLong(5, chain);
+        mInsert.bindLong(6, body.hashCode());
+        mInsert.bindBlob(7, data);
+        mInsert.executeInsert();
+    }
+
+    /**
+     * @return the body of a note at a revision, or null if it can't be read
+     */
+    private String rebuild(long noteId, long seq) {
+        String note = String.valueOf(noteId);
+        String at = String.valueOf(seq);
+        Cursor chain = mDb.rawQuery("SELECT chain, data FROM " + TABLE + " WHERE " + KEY_NOTE
+                + " = ? AND " + KEY_SEQ + " <= ? AND " + KEY_SEQ + " >= (SELECT MAX(" + KEY_SEQ
+                + ") FROM " + TABLE + " WHERE " + KEY_NOTE + " = ? AND chain = 0 AND " + KEY_SEQ
+                + " <= ?) ORDER BY " + KEY_SEQ, new String[] {note, at, note, at});
+        try {
+            String body = null;
+            while (chain.moveToNext()) {
+                byte[] data = chain.getBlob(1);
+                body = chain.getInt(0) == 0 ? decodeKeyframe(data) : applyChange(body, data);
+            }
+            return body;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't rebuild revision " + seq + " of note " + noteId, e);
+            return null;
+        } finally {
+            chain.close();
+        }
+    }
+
+    private long queryLong(String sql, String arg) {
+        SQLiteStatement statement = mDb.compileStatement(sql);
+        try {
+            statement.bindString(1, arg);
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static byte[] encodeKeyframe(String body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            OutputStream out = new DeflaterOutputStream(bytes);
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decodeKeyframe(byte[] data) throws IOException {
+        return new String(readAll(new InflaterInputStream(new ByteArrayInputStream(data))),
+                "UTF-8");
+    }
+
+    /**
+     * @return the change from one body to the next, or null if it replaces
+     * so much that a keyframe is worth storing instead
+     */
+    private static byte[] encodeChange(String from, String to) {
+        int max = Math.min(from.length(), to.length());
+        int prefix = 0;
+        while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+        // never split a surrogate pair, which wouldn't survive being encoded
+        if (prefix > 0 && Character.isHighSurrogate(to.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(to.charAt(to.length() - suffix))) {
+            suffix--;
+        }
+
+        String replacement = to.substring(prefix, to.length() - suffix);
+        if (replacement.length() > to.length() / 2) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+            out.writeInt(prefix);
+            out.writeInt(suffix);
+            out.write(replacement.getBytes("UTF-8"));
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String applyChange(String from, byte[] data) throws IOException {
+        if (from == null) {
+            throw new IOException("Change without a keyframe before it");
+        }
+        DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(data)));
+        int prefix = in.readInt();
+        int suffix = in.readInt();
+        String replacement = new String(readAll(in), "UTF-8");
+        if (prefix + suffix > from.length()) {
+            throw new IOException("Change doesn't fit the revision before it");
+        }
+        return from.substring(0, prefix) + replacement + from.substring(from.length() - suffix);
+    }
+
+    /**
+     * Read the rest of a stream and close it.
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
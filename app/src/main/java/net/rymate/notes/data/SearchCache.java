@@ -0,0 +1,291 @@
+package net.rymate.notes.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import androidx.core.os.CancellationSignal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of the last few searches, so that a query which only
+ * adds to an earlier one ("meet", "meeti", "meetin") is answered by filtering
+ * the earlier matches in memory instead of searching every note again.
+ *
+ * The text needed to refine a result is only read the first time it is
+ * refined, so a search that is never narrowed costs a single query.
+ *
+ * Each result is tagged with the change sequence it was read at. Any write to
+ * the notes moves the sequence on, which makes every cached result unusable.
+ */
+class SearchCache {
+
+    static final String[] COLUMNS = {NotesDbAdapter.KEY_ROWID, NotesDbAdapter.KEY_TITLE,
+            NotesDbAdapter.KEY_PREVIEW};
+
+    /**
+     * Searches that match more notes than this aren't cached at all
+     */
+    static final int MAX_ROWS = 1000;
+
+    /**
+     * The most note text kept for one search. Past this only the rows are
+     * kept, which is enough to repeat the search but not to refine it.
+     */
+    static final int MAX_TEXT = 256 * 1024;
+
+    private static final int MAX_ENTRIES = 8;
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private long mSequence;
+
+    /**
+     * Reads the text of the notes in a result, when it is first refined.
+     */
+    interface TextReader {
+        /**
+         * @return the title and plain text of each note, in the order of
+         * ids, or null if it is too much to keep or can't be read
+         */
+        String[] read(long[] ids, CancellationSignal signal);
+    }
+
+    /**
+     * The results of one search, in the order they are shown.
+     */
+    static class Entry {
+        final String query;
+        final String[] tokens;
+        final long sequence;
+        final long[] ids;
+        final String[] titles;
+        final String[] previews;
+        /**
+         * title and text of each note, folded like the index, or null if
+         * they haven't been read or there was too much to keep
+         */
+        private String[] texts;
+        private boolean textsRead;
+
+        /**
+         * @param query the FTS query, as made by {@link NotesDbAdapter#toMatchQuery(String)}
+         * @param sequence the change sequence the rows were read at
+         */
+        Entry(String query, long sequence, long[] ids, String[] titles, String[] previews) {
+            this.query = query;
+            this.tokens = tokensOf(query);
+            this.sequence = sequence;
+            this.ids = ids;
+            this.titles = titles;
+            this.previews = previews;
+        }
+
+        private Entry(String query, Entry base, long[] ids, String[] titles, String[] previews,
+                      String[] texts) {
+            this.query = query;
+            this.tokens = tokensOf(query);
+            this.sequence = base.sequence;
+            this.ids = ids;
+            this.titles = titles;
+            this.previews = previews;
+            this.texts = texts;
+            this.textsRead = true;
+        }
+
+        /**
+         * @return false if the entry is known to have too much text to refine
+         */
+        synchronized boolean canRefine() {
+            return !textsRead || texts != null;
+        }
+
+        /**
+         * Read the text of the notes, the first time the entry is refined.
+         *
+         * @return true if the entry has its text and can be refined
+         */
+        synchronized boolean readTexts(TextReader reader, CancellationSignal signal) {
+            if (!textsRead) {
+                String[] read = reader.read(ids, signal);
+                if (read != null) {
+                    for (int i = 0; i < read.length; i++) {
+                        read[i] = NotesDbAdapter.fold(read[i]);
+                    }
+                }
+                texts = read;
+                textsRead = true;
+            }
+            return texts != null;
+        }
+
+        /**
+         * @return true if every note matching the given tokens is in this entry
+         */
+        boolean covers(String[] narrower) {
+            for (String token : tokens) {
+                boolean found = false;
+                for (String other : narrower) {
+                    if (other.startsWith(token)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Keep only the rows that also match a narrower query.
+         */
+        synchronized Entry refine(String narrower, CancellationSignal signal) {
+            String[] narrowerTokens = tokensOf(narrower);
+            int[] keep = new int[ids.length];
+            int kept = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (signal != null && (i & 63) == 0) {
+                    signal.throwIfCanceled();
+                }
+                if (matches(texts[i], narrowerTokens)) {
+                    keep[kept++] = i;
+                }
+            }
+
+            long[] newIds = new long[kept];
+            String[] newTitles = new String[kept];
+            String[] newPreviews = new String[kept];
+            String[] newTexts = new String[kept];
+            for (int i = 0; i < kept; i++) {
+                newIds[i] = ids[keep[i]];
+                newTitles[i] = titles[keep[i]];
+                newPreviews[i] = previews[keep[i]];
+                newTexts[i] = texts[keep[i]];
+            }
+            return new Entry(narrower, this, newIds, newTitles, newPreviews, newTexts);
+        }
+
+        Cursor toCursor() {
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                cursor.addRow(new Object[] {ids[i], titles[i], previews[i]});
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * @return the current change sequence, to tag results read from now on
+     */
+    synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Forget every cached result. Called after each write to the notes.
+     */
+    synchronized void invalidate() {
+        mSequence++;
+        mEntries.clear();
+    }
+
+    /**
+     * Cache a result, unless the notes have changed since it was read.
+     */
+    synchronized void put(Entry entry) {
+        if (entry.sequence == mSequence) {
+            mEntries.put(entry.query, entry);
+        }
+    }
+
+    /**
+     * Answer a search from the cache if possible.
+     *
+     * @param query the FTS query, as made by {@link NotesDbAdapter#toMatchQuery(String)}
+     * @param signal cancels the search, or null
+     * @param reader reads the text of a result the first time it is refined
+     * @return the matching notes, or null if the database has to be searched
+     */
+    Cursor search(String query, CancellationSignal signal, TextReader reader) {
+        Entry base = findBase(query);
+        if (base == null) {
+            return null;
+        }
+        if (base.query.equals(query)) {
+            return base.toCursor();
+        }
+        if (!base.readTexts(reader, signal)) {
+            return null;
+        }
+
+        Entry refined = base.refine(query, signal);
+        put(refined);
+        return refined.toCursor();
+    }
+
+    /**
+     * @return the exact result for the query, or else the smallest result
+     * that can be refined into it
+     */
+    private synchronized Entry findBase(String query) {
+        Entry exact = mEntries.get(query);
+        if (exact != null && exact.sequence == mSequence) {
+            return exact;
+        }
+
+        String[] tokens = tokensOf(query);
+        Entry best = null;
+        for (Entry entry : mEntries.values()) {
+            if (entry.sequence != mSequence || !entry.canRefine() || !entry.covers(tokens)) {
+                continue;
+            }
+            if (best == null || entry.ids.length < best.ids.length) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    private static String[] tokensOf(String query) {
+        String[] tokens = query.split(" ");
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (token.endsWith("*")) {
+                tokens[i] = token.substring(0, token.length() - 1);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return true if every token starts a word of the text, the way an FTS
+     * prefix query would match it
+     */
+    private static boolean matches(String text, String[] tokens) {
+        for (String token : tokens) {
+            if (!startsWord(text, token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWord(String text, String token) {
+        int from = text.indexOf(token);
+        while (from >= 0) {
+            if (from == 0 || !NotesDbAdapter.isWordChar(text.charAt(from - 1))) {
+                return true;
+            }
+            from = text.indexOf(token, from + 1);
+        }
+        return false;
+    }
+}
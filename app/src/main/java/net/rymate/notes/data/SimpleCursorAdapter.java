@@ -154,7 +154,7 @@ public class SimpleCursorAdapter extends ResourceCursorAdapter {
                     if (text == null) {
                         text = "";
                     }
-                    text = text.replaceAll("\\<[^>]*>","");
+                    text = HtmlStripper.strip(text);
 
                     if (v instanceof TextView) {
                         setViewText((TextView) v, text);
@@ -8,6 +8,7 @@ import androidx.fragment.app.DialogFragment;
 import androidx.core.app.NavUtils;
 import android.text.Editable;
 import android.text.Html;
+import android.text.TextWatcher;
 import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,6 +21,7 @@ import android.widget.Toast;
 
 import net.rymate.notes.R;
 import net.rymate.notes.activities.NotesListActivity;
+import net.rymate.notes.data.NoteAutosaver;
 import net.rymate.notes.data.NotesDbAdapter;
 import net.rymate.notes.ui.StyleCallback;
 import net.rymate.notes.ui.UIUtils;
@@ -29,7 +31,8 @@ import java.util.Calendar;
 /**
  * Created by Ryan on 07/08/13.
  */
-public class NoteEditDialogFragment extends DialogFragment implements Button.OnClickListener{
+public class NoteEditDialogFragment extends DialogFragment implements Button.OnClickListener,
+        NoteAutosaver.DraftSource {
 
     private EditText mTitleText;
     private EditText mBodyText;
@@ -40,6 +43,8 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
     private String noteText = "";
     private Button mSaveButton;
     private Button mCancelButton;
+    private NoteAutosaver mAutosaver;
+    private StyleCallback mStyleCallback;
 
     public NoteEditDialogFragment(boolean b) {
         this.newNote = b;
@@ -106,15 +111,49 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
         mSaveButton.setOnClickListener(this);
 
         if (UIUtils.hasICS()) {
-            mBodyText.setCustomSelectionActionModeCallback(new StyleCallback(mBodyText));
+            mStyleCallback = new StyleCallback(mBodyText);
+            mBodyText.setCustomSelectionActionModeCallback(mStyleCallback);
         }
 
 
         populateFields();
 
+        mAutosaver = new NoteAutosaver(getActivity(), mRowId != null ? mRowId : -1, this);
+        mAutosaver.setOnSavedListener(new NoteAutosaver.OnSavedListener() {
+            @Override
+            public void onSaved(long rowId, boolean created) {
+                mRowId = rowId;
+                if (isAdded()) {
+                    // show the new or changed note in the list behind the dialog
+                    ((NotesListActivity) getActivity()).getList().fillData();
+                }
+            }
+        });
+        if (mStyleCallback != null) {
+            mStyleCallback.setOnStyleChangedListener(new StyleCallback.OnStyleChangedListener() {
+                @Override
+                public void onStyleChanged() {
+                    mAutosaver.onEdited();
+                }
+            });
+        }
+        TextWatcher watcher = mAutosaver.newTextWatcher();
+        mTitleText.addTextChangedListener(watcher);
+        mBodyText.addTextChangedListener(watcher);
+
         return rootView;
     }
 
+    @Override
+    public NoteAutosaver.Draft getDraft() {
+        String title = mTitleText.getText().toString();
+        Editable body = mBodyText.getText();
+        if (title.length() == 0 || body.length() == 0) {
+            return null;
+        }
+        return new NoteAutosaver.Draft(title, body, mCategorySpinner.getSelectedItemPosition() + 1);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -173,7 +212,7 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
     @Override
     public void onPause() {
         super.onPause();
-        //saveState();
+        mAutosaver.flush();
     }
 
     @Override
@@ -182,6 +221,12 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
         //populateFields();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDbHelper.close();
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -193,6 +238,7 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
         if(view.getId() == R.id.save_note) {
             saveState();
         } else {
+            mAutosaver.discard();
             this.getDialog().dismiss();
         }
     }
@@ -209,9 +255,7 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
     public void saveState() {
         String title = mTitleText.getText().toString();
         Editable body = mBodyText.getText();
-        String bodyText = Html.toHtml(body);
-        int category = mCategorySpinner.getSelectedItemPosition() + 1;
-        boolean saved;
+        final int category = mCategorySpinner.getSelectedItemPosition() + 1;
 
         if (title.length() == 0) {
             mTitleText.setError("Your note needs a title!");
@@ -223,28 +267,32 @@ public class NoteEditDialogFragment extends DialogFragment implements Button.OnC
             return;
         }
 
-        if (mRowId == null) {
-            long id = mDbHelper.createNote(title, bodyText, category);
-            if (id > 0) {
-                mRowId = id;
-                saved = true;
-            } else {
-                saved = false;
-            }
-        } else {
-            saved = mDbHelper.updateNote(mRowId, title, bodyText, category);
-        }
+        // written by the autosaver's writer, after any autosave in progress
+        mSaveButton.setEnabled(false);
+        mAutosaver.saveNow(new NoteAutosaver.Draft(title, body, category),
+                new NoteAutosaver.OnSaveFinishedListener() {
+                    @Override
+                    public void onSaveFinished(long rowId, boolean saved) {
+                        if (isAdded()) {
+                            onSaved(rowId, saved, category);
+                        }
+                    }
+                });
+    }
 
+    private void onSaved(long rowId, boolean saved, int category) {
+        mSaveButton.setEnabled(true);
         Context context = getActivity().getApplicationContext();
         int duration = Toast.LENGTH_SHORT;
         int durationFailed = Toast.LENGTH_LONG;
 
         if (saved) {
+            mRowId = rowId;
             Toast toast = Toast.makeText(context, R.string.note_saved, duration);
             toast.show();
             NotesListActivity notesListActivity = (NotesListActivity) getActivity();
 
-            if (mDbHelper.fetchAllNotes().getCount() == 1) {
+            if (mDbHelper.getNoteCount() == 1) {
                 notesListActivity.getSupportFragmentManager().beginTransaction()
                         .replace(R.id.note_list_container, notesListActivity.getList())
                         .commit();
@@ -10,6 +10,7 @@ import androidx.core.app.NavUtils;
 import androidx.core.app.TaskStackBuilder;
 import android.text.Editable;
 import android.text.Html;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -22,6 +23,7 @@ import android.widget.Toast;
 import net.rymate.notes.R;
 import net.rymate.notes.activities.NoteViewActivity;
 import net.rymate.notes.activities.NotesListActivity;
+import net.rymate.notes.data.NoteAutosaver;
 import net.rymate.notes.data.NotesDbAdapter;
 import net.rymate.notes.ui.StyleCallback;
 import net.rymate.notes.ui.UIUtils;
@@ -31,7 +33,8 @@ import java.util.Calendar;
 /**
  * Created by Ryan on 07/08/13.
  */
-public class NoteEditFragment extends Fragment implements Button.OnClickListener{
+public class NoteEditFragment extends Fragment implements Button.OnClickListener,
+        NoteAutosaver.DraftSource {
 
     private EditText mTitleText;
     private EditText mBodyText;
@@ -42,6 +45,8 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
     private String noteText = "";
     private Button mSaveButton;
     private Button mCancelButton;
+    private NoteAutosaver mAutosaver;
+    private StyleCallback mStyleCallback;
 
     public NoteEditFragment(boolean b) {
         this.newNote = b;
@@ -97,14 +102,44 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
         mSaveButton.setOnClickListener(this);
 
         if (UIUtils.hasICS()) {
-            mBodyText.setCustomSelectionActionModeCallback(new StyleCallback(mBodyText));
+            mStyleCallback = new StyleCallback(mBodyText);
+            mBodyText.setCustomSelectionActionModeCallback(mStyleCallback);
         }
 
         populateFields();
 
+        mAutosaver = new NoteAutosaver(getActivity(), mRowId != null ? mRowId : -1, this);
+        mAutosaver.setOnSavedListener(new NoteAutosaver.OnSavedListener() {
+            @Override
+            public void onSaved(long rowId, boolean created) {
+                mRowId = rowId;
+            }
+        });
+        if (mStyleCallback != null) {
+            mStyleCallback.setOnStyleChangedListener(new StyleCallback.OnStyleChangedListener() {
+                @Override
+                public void onStyleChanged() {
+                    mAutosaver.onEdited();
+                }
+            });
+        }
+        TextWatcher watcher = mAutosaver.newTextWatcher();
+        mTitleText.addTextChangedListener(watcher);
+        mBodyText.addTextChangedListener(watcher);
+
         return rootView;
     }
 
+    @Override
+    public NoteAutosaver.Draft getDraft() {
+        String title = mTitleText.getText().toString();
+        Editable body = mBodyText.getText();
+        if (title.length() == 0 || body.length() == 0) {
+            return null;
+        }
+        return new NoteAutosaver.Draft(title, body, mCategorySpinner.getSelectedItemPosition() + 1);
+    }
+
     private void populateFields() {
         Cursor note;
 
@@ -157,7 +192,7 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
     @Override
     public void onPause() {
         super.onPause();
-        //saveState(false);
+        mAutosaver.flush();
     }
 
     @Override
@@ -166,6 +201,12 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
         //populateFields();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDbHelper.close();
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -177,17 +218,16 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
         if(view.getId() == R.id.save_note) {
             saveState(false);
         } else {
+            mAutosaver.discard();
             getActivity().finish();
             getActivity().overridePendingTransition(R.anim.swap_in_bottom_back, R.anim.swap_out_bottom_back);
         }
     }
 
-    public void saveState(boolean twoPane) {
+    public void saveState(final boolean twoPane) {
         String title = mTitleText.getText().toString();
         Editable body = mBodyText.getText();
-        String bodyText = Html.toHtml(body);
         int category = mCategorySpinner.getSelectedItemPosition() + 1;
-        boolean saved;
 
         if (title.length() == 0) {
             mTitleText.setError("Your note needs a title!");
@@ -199,23 +239,27 @@ public class NoteEditFragment extends Fragment implements Button.OnClickListener
             return;
         }
 
-        if (mRowId == null) {
-            long id = mDbHelper.createNote(title, bodyText, category);
-            if (id > 0) {
-                mRowId = id;
-                saved = true;
-            } else {
-                saved = false;
-            }
-        } else {
-            saved = mDbHelper.updateNote(mRowId, title, bodyText, category);
-        }
+        // written by the autosaver's writer, after any autosave in progress
+        mSaveButton.setEnabled(false);
+        mAutosaver.saveNow(new NoteAutosaver.Draft(title, body, category),
+                new NoteAutosaver.OnSaveFinishedListener() {
+                    @Override
+                    public void onSaveFinished(long rowId, boolean saved) {
+                        if (isAdded()) {
+                            onSaved(rowId, saved, twoPane);
+                        }
+                    }
+                });
+    }
 
+    private void onSaved(long rowId, boolean saved, boolean twoPane) {
+        mSaveButton.setEnabled(true);
         Context context = getActivity().getApplicationContext();
         int duration = Toast.LENGTH_SHORT;
         int durationFailed = Toast.LENGTH_LONG;
 
         if (saved) {
+            mRowId = rowId;
             Toast toast = Toast.makeText(context, R.string.note_saved, duration);
             toast.show();
             if (!twoPane) {
@@ -2,14 +2,16 @@ package net.rymate.notes.fragments;
 
 import android.app.Activity;
 import android.content.Context;
-import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.print.PrintAttributes;
 import android.print.PrintDocumentAdapter;
 import android.print.PrintManager;
 import androidx.fragment.app.Fragment;
-import android.text.Html;
+import android.text.Editable;
 import android.text.Spanned;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -22,12 +24,14 @@ import android.widget.EditText;
 import net.rymate.notes.R;
 import net.rymate.notes.activities.NoteViewActivity;
 import net.rymate.notes.activities.NotesListActivity;
+import net.rymate.notes.data.NoteAutosaver;
 import net.rymate.notes.data.NotesDbAdapter;
+import net.rymate.notes.data.RenderedNote;
 
 /**
  * Created by Ryan on 05/07/13.
  */
-public class NoteViewFragment extends Fragment {
+public class NoteViewFragment extends Fragment implements NoteAutosaver.DraftSource {
 
     public static Long mRowId;
     boolean nope = false;
@@ -39,6 +43,26 @@ public class NoteViewFragment extends Fragment {
     private int categoryId;
     private String noteTitle;
     private WebView mWebView;
+    private NoteAutosaver mAutosaver;
+
+    /**
+     * Long notes are shown a piece at a time: the first piece straight away,
+     * then the rest appended a chunk per frame, so the first frame doesn't
+     * wait for the whole body to be laid out.
+     */
+    private static final int FIRST_CHUNK = 4 * 1024;
+    private static final int CHUNK = 16 * 1024;
+    private final Handler mHandler = new Handler();
+    private LoadNoteTask mLoadTask;
+    private RenderedNote mShownNote;
+    private Spanned mPendingText;
+    private int mAttached;
+    private final Runnable mAttachRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attachChunk();
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -67,6 +91,24 @@ public class NoteViewFragment extends Fragment {
         super.onAttach(activity);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mHandler.removeCallbacks(mAttachRunnable);
+        mPendingText = null;
+        mShownNote = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDbHelper.close();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -103,6 +145,7 @@ public class NoteViewFragment extends Fragment {
         EditText.OnClickListener clickListener = new EditText.OnClickListener() {
             @Override
             public void onClick(View v) {
+                finishAttaching();
                 mBodyText.setFocusable(true);
                 mBodyText.setFocusableInTouchMode(true);
                 mBodyText.requestFocus();
@@ -118,30 +161,179 @@ public class NoteViewFragment extends Fragment {
 
         mBodyText.setOnLongClickListener(longClickListener);
         mBodyText.setOnClickListener(clickListener);
+
+        mAutosaver = new NoteAutosaver(getActivity(), mRowId != null ? mRowId : -1, this);
+        mBodyText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // the note being shown also changes the text, which isn't an edit
+                if (editing) {
+                    mAutosaver.onEdited();
+                }
+            }
+        });
         return rootView;
     }
 
+    @Override
+    public NoteAutosaver.Draft getDraft() {
+        if (!editing || mRowId == null || mBodyText.getText().length() == 0) {
+            return null;
+        }
+        return new NoteAutosaver.Draft(noteTitle, mBodyText.getText(), categoryId);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mAutosaver != null) {
+            mAutosaver.flush();
+        }
+    }
+
+    /**
+     * Show the note. A note that was viewed recently is shown straight from
+     * the cache; otherwise it is read and rendered in the background.
+     */
     public void updateText() {
-        if (mRowId != null) {
-            Cursor note = mDbHelper.fetchNote(mRowId);
-            if (note == null) {
+        if (mRowId == null) {
+            return;
+        }
+
+        RenderedNote note = mDbHelper.peekRenderedNote(mRowId);
+        if (note != null) {
+            showNote(note);
+            return;
+        }
+
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadNoteTask();
+        mLoadTask.execute(mRowId);
+    }
+
+    private class LoadNoteTask extends AsyncTask<Long, Void, RenderedNote> {
+        private final Context context = getActivity().getApplicationContext();
+
+        @Override
+        protected RenderedNote doInBackground(Long... params) {
+            // hold our own reference so the database stays open even if the
+            // fragment is destroyed while the note loads
+            NotesDbAdapter dbHelper = new NotesDbAdapter(context);
+            dbHelper.open();
+            try {
+                return dbHelper.fetchRenderedNote(params[0]);
+            } finally {
+                dbHelper.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(RenderedNote note) {
+            if (mLoadTask != this) {
                 return;
             }
-            if (note.moveToFirst()) {
-                noteTitle = note.getString(note.getColumnIndexOrThrow(NotesDbAdapter.KEY_TITLE));
-                noteText = note.getString(note.getColumnIndexOrThrow(NotesDbAdapter.KEY_BODY));
-                categoryId = note.getInt(note.getColumnIndexOrThrow(NotesDbAdapter.KEY_CATID));
-                Spanned formattedBody = Html.fromHtml(noteText);
-                mBodyText.setText(formattedBody);
-                if (getActivity().getClass() == NoteViewActivity.class) {
-                    NoteViewActivity activity = (NoteViewActivity) getActivity();
-                    activity.getSupportActionBar().setTitle(note.getString(note.getColumnIndexOrThrow(NotesDbAdapter.KEY_TITLE)));
-                    activity.getSupportActionBar().setDisplayHomeAsUpEnabled(true);
-                }
-            } else {
+            mLoadTask = null;
+            if (note == null) {
                 System.out.println("Jesus christ what happened!");
+                return;
+            }
+            showNote(note);
+        }
+    }
+
+    private void showNote(RenderedNote note) {
+        noteTitle = note.title;
+        noteText = note.body;
+        categoryId = note.catId;
+        if (getActivity().getClass() == NoteViewActivity.class) {
+            NoteViewActivity activity = (NoteViewActivity) getActivity();
+            activity.getSupportActionBar().setTitle(note.title);
+            activity.getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+
+        // resuming with the same version already showing keeps the scroll
+        // position, and a newer version saved while editing is already what
+        // is being typed
+        if (editing || (mShownNote != null && mShownNote.rowId == note.rowId
+                && mShownNote.modified == note.modified)) {
+            mShownNote = note;
+            return;
+        }
+        mShownNote = note;
+
+        mHandler.removeCallbacks(mAttachRunnable);
+        Spanned text = note.text;
+        if (text.length() <= FIRST_CHUNK) {
+            mPendingText = null;
+            mBodyText.setText(text);
+            return;
+        }
+
+        int end = chunkEnd(text, 0, FIRST_CHUNK);
+        mBodyText.setText(text.subSequence(0, end));
+        mPendingText = text;
+        mAttached = end;
+        mHandler.post(mAttachRunnable);
+    }
+
+    private void attachChunk() {
+        if (mPendingText == null) {
+            return;
+        }
+
+        int end = chunkEnd(mPendingText, mAttached, CHUNK);
+        mBodyText.append(mPendingText.subSequence(mAttached, end));
+        mAttached = end;
+        if (end < mPendingText.length()) {
+            mHandler.post(mAttachRunnable);
+        } else {
+            mPendingText = null;
+        }
+    }
+
+    /**
+     * Append whatever of the body is still waiting to be shown, so that it
+     * can be edited and saved whole.
+     */
+    private void finishAttaching() {
+        mHandler.removeCallbacks(mAttachRunnable);
+        if (mPendingText != null) {
+            mBodyText.append(mPendingText.subSequence(mAttached, mPendingText.length()));
+            mPendingText = null;
+        }
+    }
+
+    /**
+     * Find where the chunk starting at start should end. Chunks end just
+     * after a line break, as paragraph styles can't be split mid paragraph.
+     */
+    private static int chunkEnd(CharSequence text, int start, int size) {
+        int length = text.length();
+        int end = start + size;
+        if (end >= length) {
+            return length;
+        }
+        for (int i = end; i > start; i--) {
+            if (text.charAt(i - 1) == '\n') {
+                return i;
+            }
+        }
+        for (int i = end; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                return i + 1;
             }
         }
+        return length;
     }
 
     public void setText(String text) {
@@ -157,12 +349,18 @@ public class NoteViewFragment extends Fragment {
     }
 
     public void saveNote() {
+        finishAttaching();
         setEditing(false);
         getActivity().supportInvalidateOptionsMenu();
         mBodyText.setFocusable(false);
         mBodyText.setFocusableInTouchMode(false);
         imeManager.hideSoftInputFromWindow(mBodyText.getWindowToken(), 0);
-        mDbHelper.updateNote(mRowId, noteTitle, Html.toHtml(mBodyText.getText()), categoryId);
+        // nothing to save until the note has been shown, as getDraft() checks
+        if (mRowId == null || noteTitle == null || mBodyText.getText().length() == 0) {
+            return;
+        }
+        mAutosaver.saveNow(new NoteAutosaver.Draft(noteTitle, mBodyText.getText(), categoryId),
+                null);
     }
 
     public void printNote() {
@@ -6,10 +6,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import androidx.core.os.CancellationSignal;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
@@ -32,9 +33,14 @@ import android.widget.Toast;
 import net.rymate.notes.R;
 import net.rymate.notes.activities.NoteEditActivity;
 import net.rymate.notes.activities.NotesListActivity;
+import net.rymate.notes.data.NoteListSnapshot;
 import net.rymate.notes.data.NotesDbAdapter;
 import net.rymate.notes.data.NotesRecyclerAdapter;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Created by Ryan on 04/07/13.
  */
@@ -46,6 +52,10 @@ public class NotesListFragment extends Fragment
      * Only used on tablets.
      */
     private static final String STATE_ACTIVATED_POSITION = "activated_position";
+    /**
+     * How long typing has to pause before the search runs, in milliseconds
+     */
+    private static final long SEARCH_DELAY = 250;
     /**
      * A dummy implementation of the {@link Callbacks} interface that does
      * nothing. Used only when this fragment is not attached to an activity.
@@ -75,12 +85,38 @@ public class NotesListFragment extends Fragment
     private TextView mProgressText;
     private RelativeLayout mProgressContainer;
     private int category;
+    private int mSortMode = NotesDbAdapter.SORT_TITLE;
     private RecyclerView mNotesRecycler;
     private int mScreenHeight;
     private boolean mHidden;
     private float currentY;
     private boolean portraitTablet;
 
+    /**
+     * Lists of notes and searches load one at a time on this thread. Only the
+     * newest load is shown; older ones are cancelled and their results dropped.
+     */
+    private ExecutorService mLoadExecutor;
+    private final Handler mHandler = new Handler();
+    private String mPendingQuery;
+    private volatile int mLoadGeneration;
+    private CancellationSignal mLoadSignal;
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startSearch(mPendingQuery);
+        }
+    };
+
+    /**
+     * The list keeps one adapter for as long as it is showing. New data is
+     * compared with the snapshot of what is shown, so only the rows that
+     * changed are rebound and the scroll position is kept.
+     */
+    private NotesRecyclerAdapter mNotesAdapter;
+    private NoteListSnapshot mShownNotes;
+    private String mShownList;
+
 
     public NotesListFragment(FloatingActionButton fab) {
         this.fab = fab;
@@ -99,6 +135,23 @@ public class NotesListFragment extends Fragment
 
         mDbHelper = new NotesDbAdapter(this.getActivity());
         mDbHelper.open();
+        mLoadExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelLoad();
+        // a load may still be using the database, so close it after that
+        // load and anything queued behind it have finished
+        final NotesDbAdapter dbHelper = mDbHelper;
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.close();
+            }
+        });
+        mLoadExecutor.shutdown();
     }
 
     @Override
@@ -132,21 +185,37 @@ public class NotesListFragment extends Fragment
             portraitTablet = true;
         }
 
+        mNotesAdapter = new NotesRecyclerAdapter(null, getActivity()) {
+            @Override
+            protected void onContentChanged() {
+                // the list's count turned out to be wrong
+                fillData(category);
+            }
+        };
+        mNotesAdapter.SetOnItemClickListener(this);
+        mNotesRecycler.setAdapter(mNotesAdapter);
+        mNotesRecycler.setHasFixedSize(true);
+        setNotesLayoutManager();
+
         fillData();
 
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        cancelLoad();
+        mNotesAdapter.changeCursor(null);
+        mNotesAdapter = null;
+        mNotesRecycler = null;
+        mShownNotes = null;
+        mShownList = null;
+    }
 
-    public void fillData() {
-        Cursor notesCursor = mDbHelper.fetchAllNotes();
-
-        NotesRecyclerAdapter notes = new NotesRecyclerAdapter(notesCursor, getActivity());
-        notes.SetOnItemClickListener(this);
-        mNotesRecycler.setAdapter(notes);
-        mNotesRecycler.setHasFixedSize(true);
-        setNotesLayoutManager();
 
+    public void fillData() {
+        fillData(category);
     }
 
     private void setNotesLayoutManager() {
@@ -162,42 +231,178 @@ public class NotesListFragment extends Fragment
 
     public void fillData(int catId) {
         category = catId;
-        Cursor notesCursor;
+        if (mNotesRecycler == null) {
+            return;
+        }
+
+        final int[] catIds;
         if (catId == 0) {
             //  get ALL THE NOTES
-            notesCursor = mDbHelper.fetchAllNotes();
+            catIds = null;
         } else if (catId == 1) {
             // get ALL the notes that are not in a category
-            Cursor notesCursor1 = mDbHelper.fetchNotes(0);
-            Cursor notesCursor2 = mDbHelper.fetchNotes(1);
-            Cursor[] notesCursor12 = {notesCursor1, notesCursor2};
-
-            notesCursor = new MergeCursor(notesCursor12);
+            catIds = new int[] {0, 1};
         } else {
             // get ALL the notes in a category
-            notesCursor = mDbHelper.fetchNotes(catId);
+            catIds = new int[] {catId};
         }
 
-        NotesRecyclerAdapter notes = new NotesRecyclerAdapter(notesCursor, getActivity());
-        notes.SetOnItemClickListener(this);
-        mNotesRecycler.setAdapter(notes);
-        mNotesRecycler.setHasFixedSize(true);
-        setNotesLayoutManager();
+        final int sort = mSortMode;
+        loadNotes("category " + catId + " " + sort, new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                return mDbHelper.fetchNotesPaged(catIds, sort, mLoadExecutor);
+            }
+        }, null);
     }
 
+    /**
+     * Change the order the notes are listed in, refreshing the list if it
+     * is already showing.
+     *
+     * @param sortMode one of the NotesDbAdapter.SORT_ constants
+     */
+    public void setSortMode(int sortMode) {
+        mSortMode = sortMode;
+        if (mNotesRecycler != null) {
+            fillData(category);
+        }
+    }
+
+    public int getSortMode() {
+        return mSortMode;
+    }
+
+    /**
+     * Show the notes matching a search query. The search runs in the
+     * background once the query has stopped changing for a moment, so this
+     * can be called on every keystroke.
+     *
+     * @param s the query, or an empty string to go back to the category
+     */
     public void search(String s) {
-        if (mDbHelper.fetchAllNotes().getCount() == 0) {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mPendingQuery = s;
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+    }
+
+    private void startSearch(final String query) {
+        if (mNotesRecycler == null || mDbHelper.isKnownEmpty()) {
             return;
         }
 
-        if (!s.isEmpty()) {
-            Cursor notesCursor = mDbHelper.searchNotes(s);
+        if (query.isEmpty()) {
+            fillData(category);
+            return;
+        }
 
-            NotesRecyclerAdapter notes = new NotesRecyclerAdapter(notesCursor, getActivity());
-            notes.SetOnItemClickListener(this);
-            mNotesRecycler.setAdapter(notes);
-            mNotesRecycler.setHasFixedSize(true);
-            setNotesLayoutManager();
+        final CancellationSignal signal = new CancellationSignal();
+        loadNotes("search", new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                return mDbHelper.searchNotes(query, signal);
+            }
+        }, signal);
+    }
+
+    /**
+     * Load notes in the background and show them in place of the current
+     * ones. When the same list is loaded again, such as after a note was
+     * deleted, only the rows that changed are updated.
+     *
+     * @param list names the list being loaded; rows are only diffed against
+     *             an earlier load of the same list
+     * @param query makes the cursor over the notes
+     * @param signal cancels the query, or null if it can't be cancelled
+     */
+    private void loadNotes(final String list, final Callable<Cursor> query,
+                           CancellationSignal signal) {
+        cancelLoad();
+        final int generation = mLoadGeneration;
+        final CancellationSignal cancel = signal != null ? signal : new CancellationSignal();
+        mLoadSignal = cancel;
+        final NoteListSnapshot shown = shownSnapshot(list);
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (cancel.isCanceled()) {
+                    return;
+                }
+
+                Cursor cursor = null;
+                NoteListSnapshot snapshot = null;
+                NoteListSnapshot.Changes diff = null;
+                try {
+                    cursor = query.call();
+                    if (!NoteListSnapshot.canTakeLater(cursor)) {
+                        // reading the rows runs the query here rather than on the UI thread
+                        snapshot = NoteListSnapshot.of(cursor);
+                    }
+                    if (shown != null) {
+                        NoteListSnapshot now = snapshot != null ? snapshot : shown.sameRowsOf(cursor);
+                        if (now != null) {
+                            diff = shown.diff(now);
+                        }
+                    }
+                } catch (Exception e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    if (!cancel.isCanceled()) {
+                        Log.w("Rymate Notes", "Loading notes failed", e);
+                    }
+                    return;
+                }
+
+                final Cursor notes = cursor;
+                final NoteListSnapshot notesSnapshot = snapshot;
+                final NoteListSnapshot.Changes notesDiff = diff;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLoadGeneration || mNotesRecycler == null) {
+                            notes.close();
+                            return;
+                        }
+                        mLoadSignal = null;
+                        mShownNotes = notesSnapshot;
+                        mShownList = list;
+                        mNotesAdapter.changeCursor(notes, notesDiff);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the snapshot to diff a new load of the list against, or null
+     * if a different list is being shown. A paged list is snapshot from the
+     * pages it has in memory now, which is quick enough for the UI thread.
+     */
+    private NoteListSnapshot shownSnapshot(String list) {
+        if (!list.equals(mShownList)) {
+            return null;
+        }
+        if (mShownNotes != null) {
+            return mShownNotes;
+        }
+        Cursor shown = mNotesAdapter.getCursor();
+        if (shown != null && NoteListSnapshot.canTakeLater(shown)) {
+            return NoteListSnapshot.of(shown);
+        }
+        return null;
+    }
+
+    /**
+     * Stop the search or load that is waiting or running, if there is one.
+     * Its results won't be shown.
+     */
+    private void cancelLoad() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mLoadGeneration++;
+        if (mLoadSignal != null) {
+            mLoadSignal.cancel();
+            mLoadSignal = null;
         }
     }
 
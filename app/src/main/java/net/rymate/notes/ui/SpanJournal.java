@@ -0,0 +1,142 @@
+package net.rymate.notes.ui;
+
+import android.text.Spannable;
+import android.text.Spanned;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Records the spans added to and removed from an editor's text, so style
+ * changes can be undone and redone. Only the span objects and their
+ * positions are kept, never copies of the text, so undoing costs the same
+ * however long the note is.
+ */
+public class SpanJournal {
+    private static final int MAX_EDITS = 100;
+
+    private static class Change {
+        final Object span;
+        final boolean added;
+        final int flags;
+        int start;
+        int end;
+
+        Change(Object span, boolean added, int start, int end, int flags) {
+            this.span = span;
+            this.added = added;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+        }
+    }
+
+    private final ArrayDeque<ArrayList<Change>> mUndo = new ArrayDeque<ArrayList<Change>>();
+    private final ArrayDeque<ArrayList<Change>> mRedo = new ArrayDeque<ArrayList<Change>>();
+    private ArrayList<Change> mEdit;
+
+    /**
+     * Start recording an edit. Every span added or removed until
+     * {@link #endEdit()} is undone as one step.
+     */
+    public void beginEdit() {
+        mEdit = new ArrayList<Change>();
+    }
+
+    /**
+     * Finish recording an edit. Starting a new edit forgets anything that
+     * was undone, as it can no longer be redone.
+     */
+    public void endEdit() {
+        if (mEdit != null && !mEdit.isEmpty()) {
+            mUndo.push(mEdit);
+            if (mUndo.size() > MAX_EDITS) {
+                mUndo.removeLast();
+            }
+            mRedo.clear();
+        }
+        mEdit = null;
+    }
+
+    public void addSpan(Spannable text, Object span, int start, int end, int flags) {
+        text.setSpan(span, start, end, flags);
+        if (mEdit != null) {
+            mEdit.add(new Change(span, true, start, end, flags));
+        }
+    }
+
+    public void removeSpan(Spannable text, Object span) {
+        if (mEdit != null) {
+            mEdit.add(new Change(span, false, text.getSpanStart(span), text.getSpanEnd(span),
+                    text.getSpanFlags(span)));
+        }
+        text.removeSpan(span);
+    }
+
+    public boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * Reverse the last edit.
+     *
+     * @return false if there was nothing to undo
+     */
+    public boolean undo(Spannable text) {
+        ArrayList<Change> edit = mUndo.poll();
+        if (edit == null) {
+            return false;
+        }
+        for (int i = edit.size() - 1; i >= 0; i--) {
+            apply(text, edit.get(i), !edit.get(i).added);
+        }
+        mRedo.push(edit);
+        return true;
+    }
+
+    /**
+     * Make the last undone edit again.
+     *
+     * @return false if there was nothing to redo
+     */
+    public boolean redo(Spannable text) {
+        ArrayList<Change> edit = mRedo.poll();
+        if (edit == null) {
+            return false;
+        }
+        for (Change change : edit) {
+            apply(text, change, change.added);
+        }
+        mUndo.push(edit);
+        return true;
+    }
+
+    /**
+     * Put a span back where it was, or take it out and remember where it was
+     * so it can be put back. The text may have been edited since, so the
+     * remembered position is kept inside it.
+     */
+    private static void apply(Spannable text, Change change, boolean add) {
+        if (add) {
+            int length = text.length();
+            int start = Math.min(change.start, length);
+            int end = Math.min(Math.max(change.end, start), length);
+            if (start == end && (change.flags & Spanned.SPAN_POINT_MARK_MASK)
+                    == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) {
+                // the text it covered has been deleted
+                return;
+            }
+            text.setSpan(change.span, start, end, change.flags);
+        } else {
+            if (text.getSpanStart(change.span) >= 0) {
+                change.start = text.getSpanStart(change.span);
+                change.end = text.getSpanEnd(change.span);
+            }
+            text.removeSpan(change.span);
+        }
+    }
+}
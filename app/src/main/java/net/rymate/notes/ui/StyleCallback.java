@@ -1,7 +1,8 @@
 package net.rymate.notes.ui;
 
 import android.graphics.Typeface;
-import android.text.SpannableStringBuilder;
+import android.text.Editable;
+import android.text.Spanned;
 import android.text.style.CharacterStyle;
 import android.text.style.StyleSpan;
 import android.text.style.UnderlineSpan;
@@ -13,14 +14,34 @@ import android.widget.EditText;
 
 import net.rymate.notes.R;
 
+/**
+ * Styles the selected text of an editor. Styles are set on the editor's own
+ * Editable rather than a copy of the text, so the selection, scroll position
+ * and keyboard are left alone, and every change goes through a
+ * {@link SpanJournal} so it can be undone.
+ */
 public class StyleCallback implements ActionMode.Callback {
 
     private final EditText mBodyText;
+    private final SpanJournal mJournal = new SpanJournal();
+    private OnStyleChangedListener mListener;
+
+    /**
+     * Told when the styles of the text change. Styling doesn't change the
+     * text itself, so a TextWatcher never hears of it.
+     */
+    public interface OnStyleChangedListener {
+        void onStyleChanged();
+    }
 
     public StyleCallback(EditText mBodyText) {
         this.mBodyText = mBodyText;
     }
 
+    public void setOnStyleChangedListener(OnStyleChangedListener listener) {
+        mListener = listener;
+    }
+
     public boolean onCreateActionMode(ActionMode mode, Menu menu) {
         MenuInflater inflater = mode.getMenuInflater();
         inflater.inflate(R.menu.actionmode_style, menu);
@@ -29,39 +50,134 @@ public class StyleCallback implements ActionMode.Callback {
     }
 
     public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
-        return false;
+        MenuItem undo = menu.findItem(R.id.undo_style);
+        MenuItem redo = menu.findItem(R.id.redo_style);
+        if (undo == null || redo == null) {
+            return false;
+        }
+        undo.setVisible(mJournal.canUndo());
+        redo.setVisible(mJournal.canRedo());
+        return true;
     }
 
     @Override
     public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
-        CharacterStyle cs;
-        int start = mBodyText.getSelectionStart();
-        int end = mBodyText.getSelectionEnd();
-        SpannableStringBuilder ssb = new SpannableStringBuilder(mBodyText.getText());
+        Editable text = mBodyText.getText();
+        int start = Math.min(mBodyText.getSelectionStart(), mBodyText.getSelectionEnd());
+        int end = Math.max(mBodyText.getSelectionStart(), mBodyText.getSelectionEnd());
 
+        boolean changed;
         switch (item.getItemId()) {
 
             case R.id.bold:
-                cs = new StyleSpan(Typeface.BOLD);
-                ssb.setSpan(cs, start, end, 1);
-                mBodyText.setText(ssb);
-                return true;
+                changed = toggleStyle(text, start, end, Typeface.BOLD);
+                break;
 
             case R.id.italic:
-                cs = new StyleSpan(Typeface.ITALIC);
-                ssb.setSpan(cs, start, end, 1);
-                mBodyText.setText(ssb);
-                return true;
+                changed = toggleStyle(text, start, end, Typeface.ITALIC);
+                break;
 
             case R.id.underline:
-                cs = new UnderlineSpan();
-                ssb.setSpan(cs, start, end, 1);
-                mBodyText.setText(ssb);
-                return true;
+                changed = toggleStyle(text, start, end, -1);
+                break;
+
+            case R.id.undo_style:
+                changed = mJournal.undo(text);
+                break;
+
+            case R.id.redo_style:
+                changed = mJournal.redo(text);
+                break;
+
+            default:
+                return false;
+        }
+        if (changed && mListener != null) {
+            mListener.onStyleChanged();
         }
-        return false;
+        mode.invalidate();
+        return true;
     }
 
     public void onDestroyActionMode(ActionMode mode) {
     }
-}
\ No newline at end of file
+
+    /**
+     * Style the selection, or if all of it already has the style, take the
+     * style off the selection instead.
+     *
+     * @param style a Typeface style, or -1 for underline
+     * @return false if there was no selection to style
+     */
+    private boolean toggleStyle(Editable text, int start, int end, int style) {
+        if (start < 0 || start == end) {
+            return false;
+        }
+
+        CharacterStyle[] spans = findStyle(text, start, end, style);
+        mJournal.beginEdit();
+        if (covers(text, spans, start, end)) {
+            // keep the parts of each span outside the selection
+            for (CharacterStyle span : spans) {
+                int spanStart = text.getSpanStart(span);
+                int spanEnd = text.getSpanEnd(span);
+                int flags = text.getSpanFlags(span);
+                mJournal.removeSpan(text, span);
+                if (spanStart < start) {
+                    mJournal.addSpan(text, newStyle(style), spanStart, start, flags);
+                }
+                if (spanEnd > end) {
+                    mJournal.addSpan(text, newStyle(style), end, spanEnd, flags);
+                }
+            }
+        } else {
+            mJournal.addSpan(text, newStyle(style), start, end,
+                    Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+        mJournal.endEdit();
+        return true;
+    }
+
+    /**
+     * @return the spans of a style that overlap the range
+     */
+    private static CharacterStyle[] findStyle(Editable text, int start, int end, int style) {
+        Class<? extends CharacterStyle> type = style < 0 ? UnderlineSpan.class : StyleSpan.class;
+        CharacterStyle[] found = text.getSpans(start, end, type);
+        int count = 0;
+        for (CharacterStyle span : found) {
+            boolean composing = (text.getSpanFlags(span) & Spanned.SPAN_COMPOSING) != 0;
+            boolean matches = style < 0 ? span.getClass() == UnderlineSpan.class
+                    : ((StyleSpan) span).getStyle() == style;
+            if (matches && !composing && text.getSpanEnd(span) > start
+                    && text.getSpanStart(span) < end) {
+                found[count++] = span;
+            }
+        }
+        CharacterStyle[] spans = new CharacterStyle[count];
+        System.arraycopy(found, 0, spans, 0, count);
+        return spans;
+    }
+
+    /**
+     * @return true if every character of the range is inside one of the spans
+     */
+    private static boolean covers(Editable text, CharacterStyle[] spans, int start, int end) {
+        int covered = start;
+        boolean grew = true;
+        while (covered < end && grew) {
+            grew = false;
+            for (CharacterStyle span : spans) {
+                if (text.getSpanStart(span) <= covered && text.getSpanEnd(span) > covered) {
+                    covered = text.getSpanEnd(span);
+                    grew = true;
+                }
+            }
+        }
+        return covered >= end;
+    }
+
+    private static CharacterStyle newStyle(int style) {
+        return style < 0 ? new UnderlineSpan() : new StyleSpan(style);
+    }
+}